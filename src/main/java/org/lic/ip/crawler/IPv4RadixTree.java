@@ -2,6 +2,7 @@ package org.lic.ip.crawler;
 
 
 import org.lic.ip.util.IPUtil;
+import org.lic.ip.util.TreeStats;
 
 import java.io.*;
 import java.net.InetAddress;
@@ -229,6 +230,69 @@ public class IPv4RadixTree {
      */
     public int size() { return size; }
 
+    /**
+     * Shrinks the node arrays to the nodes in use.
+     */
+    public void trimToSize() {
+        if (allocatedSize == size)
+            return;
+        lefts = Arrays.copyOf(lefts, size);
+        rights = Arrays.copyOf(rights, size);
+        values = Arrays.copyOf(values, size);
+        allocatedSize = size;
+    }
+
+    /**
+     * Walks the tree to report its shape and the bytes of its node arrays;
+     * the dictionary bytes are those of the distinct IpData values and their
+     * strings.
+     * @return statistics of the tree at the time of the call
+     */
+    public TreeStats getStats() {
+        TreeStats.Builder stats = new TreeStats.Builder(size, allocatedSize);
+        int[] stack = new int[2 * (TreeStats.MAX_DEPTH + 2)];
+        int top = 0;
+        stack[top++] = ROOT_PTR;
+        stack[top++] = 0;
+        while (top > 0) {
+            int depth = stack[--top];
+            int node = stack[--top];
+            stats.node(depth, values[node] != NO_VALUE);
+            if (rights[node] != NULL_PTR) {
+                stack[top++] = rights[node];
+                stack[top++] = depth + 1;
+            }
+            if (lefts[node] != NULL_PTR) {
+                stack[top++] = lefts[node];
+                stack[top++] = depth + 1;
+            }
+        }
+
+        stats.array("lefts", lefts.length, size, 4);
+        stats.array("rights", rights.length, size, 4);
+        stats.array("values", values.length, size, TreeStats.REFERENCE_BYTES);
+
+        // 6 references and an int per IpData
+        long bytes = 0;
+        Set<IpData> seen = Collections.newSetFromMap(new IdentityHashMap<IpData, Boolean>());
+        Set<String> strings = Collections.newSetFromMap(new IdentityHashMap<String, Boolean>());
+        for (int node = 0; node < size; node++) {
+            IpData value = values[node];
+            if (value == NO_VALUE || !seen.add(value))
+                continue;
+            bytes += TreeStats.objectBytes(6 * TreeStats.REFERENCE_BYTES + 4);
+            String[] fields = { value.getNetwork(), value.getCountry(),
+                value.getProvince(), value.getCity(), value.getIsp(),
+                value.getIp() };
+            for (String s : fields) {
+                if (s != null && strings.add(s))
+                    bytes += TreeStats.stringBytes(s);
+            }
+        }
+        stats.dictionaryObjects(bytes);
+        return stats.build();
+    }
+
     public void writeRawToFile(String filename) throws IOException {
 
         OutputStreamWriter writer = new OutputStreamWriter(new FileOutputStream(new File(filename)), "UTF-8");
@@ -0,0 +1,184 @@
+package org.lic.ip.iplocator;
+
+import org.lic.ip.util.IPUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Copy of a loaded {@link IPv4RadixIntTree} with its nodes renumbered for
+ * cache locality. {@link IPv4RadixIntTree} numbers nodes in insertion order,
+ * so the steps of one lookup jump across its three arrays; here each node is
+ * three consecutive ints of a single array (left, right, value id) and:
+ * <ul>
+ * <li>the top {@link #BFS_LEVELS} levels, which every lookup goes through,
+ * are laid out breadth first, densely packed together;</li>
+ * <li>below them, each subtree is laid out depth first (preorder), so that a
+ * left child directly follows its parent and the nodes of a subtree share a
+ * few cache lines.</li>
+ * </ul>
+ * The binary walk itself, hence the lookup semantics, are the same as the
+ * tree's.
+ */
+public class CompactRadixTree implements IPv4Engine {
+    private static final Logger logger = LoggerFactory
+        .getLogger(CompactRadixTree.class);
+
+    /**
+     * Number of levels laid out breadth first, at most 2^12 - 1 nodes (48KB).
+     */
+    public static final int BFS_LEVELS = 12;
+
+    private static final int NODE_INTS = 3;
+
+    private static final int VALUE = 2;
+
+    /**
+     * Node i at [3i, 3i + 3): offset of its left child, offset of its right
+     * child (-1 for none), value id. The root is at 0.
+     */
+    private final int[] nodes;
+
+    private final IPLocation[] values;
+
+    private CompactRadixTree(IPv4RadixIntTree tree) {
+        values = tree.getDictionary().toArray();
+
+        int[] order = layout(tree);
+        int count = order.length;
+        // old node -> new offset
+        int[] offsets = new int[tree.size()];
+        for (int i = 0; i < count; i++) {
+            offsets[order[i]] = NODE_INTS * i;
+        }
+        nodes = new int[NODE_INTS * count];
+        for (int i = 0; i < count; i++) {
+            int node = order[i];
+            int left = tree.leftOf(node);
+            int right = tree.rightOf(node);
+            nodes[NODE_INTS * i] = left == IPv4RadixIntTree.NULL_PTR ? -1
+                : offsets[left];
+            nodes[NODE_INTS * i + 1] = right == IPv4RadixIntTree.NULL_PTR ? -1
+                : offsets[right];
+            nodes[NODE_INTS * i + VALUE] = tree.valueOf(node);
+        }
+    }
+
+    /**
+     * @return the reachable nodes of tree, in their new order
+     */
+    private static int[] layout(IPv4RadixIntTree tree) {
+        int[] order = new int[tree.size()];
+        int count = 0;
+
+        // top levels breadth first, order doubles as the queue
+        order[count++] = IPv4RadixIntTree.ROOT_PTR;
+        int levelStart = 0;
+        for (int depth = 1; depth < BFS_LEVELS; depth++) {
+            int levelEnd = count;
+            for (int i = levelStart; i < levelEnd; i++) {
+                int left = tree.leftOf(order[i]);
+                int right = tree.rightOf(order[i]);
+                if (left != IPv4RadixIntTree.NULL_PTR)
+                    order[count++] = left;
+                if (right != IPv4RadixIntTree.NULL_PTR)
+                    order[count++] = right;
+            }
+            levelStart = levelEnd;
+        }
+
+        // then the subtrees below the last breadth first level, each one
+        // depth first
+        int levelEnd = count;
+        // at most one pending right child per level
+        int[] stack = new int[33];
+        for (int i = levelStart; i < levelEnd; i++) {
+            int top = 0;
+            int right = tree.rightOf(order[i]);
+            int left = tree.leftOf(order[i]);
+            if (right != IPv4RadixIntTree.NULL_PTR)
+                stack[top++] = right;
+            if (left != IPv4RadixIntTree.NULL_PTR)
+                stack[top++] = left;
+            while (top > 0) {
+                int node = stack[--top];
+                order[count++] = node;
+                right = tree.rightOf(node);
+                left = tree.leftOf(node);
+                if (right != IPv4RadixIntTree.NULL_PTR)
+                    stack[top++] = right;
+                if (left != IPv4RadixIntTree.NULL_PTR)
+                    stack[top++] = left;
+            }
+        }
+
+        if (count == order.length)
+            return order;
+        int[] reachable = new int[count];
+        System.arraycopy(order, 0, reachable, 0, count);
+        return reachable;
+    }
+
+    /**
+     * Builds a compact copy of a tree.
+     *
+     * @param tree
+     *            fully loaded binary radix tree
+     * @return a tree answering the same lookups as tree
+     */
+    public static CompactRadixTree build(IPv4RadixIntTree tree) {
+        long start = System.currentTimeMillis();
+        CompactRadixTree compact = new CompactRadixTree(tree);
+        logger.info("build ok, nodes: {} ({} bytes), values: {}, cost: {}ms",
+            new Object[] { compact.size(), compact.nodes.length * 4L,
+                compact.values.length, System.currentTimeMillis() - start });
+        return compact;
+    }
+
+    @Override
+    public IPLocation get(String ipStr) {
+        long key = IPUtil.parseIPv4(ipStr);
+        if (key < 0)
+            return IPv4RadixIntTree.NO_VALUE;
+        return get((int) key);
+    }
+
+    @Override
+    public IPLocation getIPLocation(String ip) {
+        return get(ip);
+    }
+
+    @Override
+    public IPLocation get(long key) {
+        return get((int) key);
+    }
+
+    @Override
+    public IPLocation get(int key) {
+        return values[getId(key)];
+    }
+
+    @Override
+    public int getId(int key) {
+        int[] nodes = this.nodes;
+        int value = LocationDictionary.NO_VALUE_ID;
+        int node = 0;
+        int depth = 0;
+        while (node >= 0) {
+            int v = nodes[node + VALUE];
+            if (v != LocationDictionary.NO_VALUE_ID)
+                value = v;
+            // left at +0, right at +1; at depth 32 the shift wraps, but a
+            // /32 node has no child either way
+            node = nodes[node + ((key << depth) >>> 31)];
+            depth++;
+        }
+        return value;
+    }
+
+    /**
+     * @return number of nodes, the root included
+     */
+    public int size() {
+        return nodes.length / NODE_INTS;
+    }
+}
@@ -0,0 +1,339 @@
+package org.lic.ip.iplocator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Binary image of an {@link IPv4RadixIntTree}, compiled once by
+ * {@link IPDatabaseCompiler} so that a load is a bulk copy of the node arrays
+ * out of a mapped file instead of parsing the text database line by line.
+ * All the numbers are big-endian:
+ *
+ * <pre>
+ * header (32 bytes)
+ *   int   magic           "IPDB"
+ *   int   version
+ *   int   nodes           number of tree nodes
+ *   int   locations       dictionary size, NO_VALUE_ID included
+ *   int   strings         number of pooled strings
+ *   int   poolBytes       length of the string pool
+ *   long  checksum        CRC32 of everything after the header
+ * int[nodes]              lefts
+ * int[nodes]              rights
+ * int[nodes]              value ids
+ * int[4 * locations - 4]  country, province, city and isp string indexes of
+ *                         ids 1.., -1 for null (version 3)
+ * int[strings + 1]        start of each string in the pool, then its end
+ * byte[poolBytes]         UTF-8 string pool
+ * int                     v6nodes, number of IPv6 tree nodes (version 2+)
+ * long[v6nodes]           high 64 bits of the node prefixes
+ * long[v6nodes]           low 64 bits of the node prefixes
+ * int[v6nodes]            prefix lengths
+ * int[v6nodes]            lefts
+ * int[v6nodes]            rights
+ * int[v6nodes]            value ids
+ * </pre>
+ *
+ * Older images are still read: version 1 has no IPv6 section, and versions 1
+ * and 2 store only the country and area of each location (int[2 * locations
+ * - 2]), which come back with a null province and city.
+ */
+final class DatabaseImage {
+
+    static final int MAGIC = 0x49504442;
+
+    static final int VERSION = 3;
+
+    static final int HEADER_SIZE = 32;
+
+    private static final int CHECKSUM_OFFSET = 24;
+
+    private DatabaseImage() {
+    }
+
+    static boolean isImage(String filepath) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(filepath, "r");
+        try {
+            return file.length() >= HEADER_SIZE && file.readInt() == MAGIC;
+        } finally {
+            file.close();
+        }
+    }
+
+    static void write(String filepath, int nodes, int[] lefts, int[] rights,
+        int[] values, LocationDictionary dictionary, IPv6RadixTree ipv6)
+        throws IOException {
+        Map<String, Integer> stringIds = new LinkedHashMap<String, Integer>();
+        int locations = dictionary.size();
+        LocationDictionary.Attribute[] attributes = LocationDictionary.Attribute
+            .values();
+        int fields = attributes.length;
+        int[] locationStrings = new int[fields * (locations - 1)];
+        for (int id = 1; id < locations; id++) {
+            for (int a = 0; a < fields; a++) {
+                locationStrings[fields * (id - 1) + a] = stringId(stringIds,
+                    dictionary.get(id, attributes[a]));
+            }
+        }
+
+        ByteArrayOutputStream pool = new ByteArrayOutputStream();
+        int[] offsets = new int[stringIds.size() + 1];
+        int i = 0;
+        for (String s: stringIds.keySet()) {
+            offsets[i++] = pool.size();
+            byte[] b = s.getBytes("UTF-8");
+            pool.write(b, 0, b.length);
+        }
+        offsets[i] = pool.size();
+        byte[] poolBytes = pool.toByteArray();
+
+        int v6nodes = ipv6.size();
+        long length = HEADER_SIZE + 4L
+            * (3L * nodes + locationStrings.length + offsets.length)
+            + poolBytes.length + ipv6Bytes(v6nodes);
+        if (length > Integer.MAX_VALUE)
+            throw new IOException("image too large: " + length + " bytes");
+
+        ByteBuffer bb = ByteBuffer.allocate((int) length);
+        bb.position(HEADER_SIZE);
+        IntBuffer ib = bb.asIntBuffer();
+        ib.put(lefts, 0, nodes);
+        ib.put(rights, 0, nodes);
+        ib.put(values, 0, nodes);
+        ib.put(locationStrings);
+        ib.put(offsets);
+        bb.position(HEADER_SIZE + 4 * ib.position());
+        bb.put(poolBytes);
+        bb.putInt(v6nodes);
+        for (int j = 0; j < v6nodes; j++) {
+            bb.putLong(ipv6.keyHiOf(j));
+        }
+        for (int j = 0; j < v6nodes; j++) {
+            bb.putLong(ipv6.keyLoOf(j));
+        }
+        for (int j = 0; j < v6nodes; j++) {
+            bb.putInt(ipv6.lenOf(j));
+        }
+        for (int j = 0; j < v6nodes; j++) {
+            bb.putInt(ipv6.leftOf(j));
+        }
+        for (int j = 0; j < v6nodes; j++) {
+            bb.putInt(ipv6.rightOf(j));
+        }
+        for (int j = 0; j < v6nodes; j++) {
+            bb.putInt(ipv6.valueOf(j));
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(bb.array(), HEADER_SIZE, bb.capacity() - HEADER_SIZE);
+        bb.putInt(0, MAGIC);
+        bb.putInt(4, VERSION);
+        bb.putInt(8, nodes);
+        bb.putInt(12, locations);
+        bb.putInt(16, stringIds.size());
+        bb.putInt(20, poolBytes.length);
+        bb.putLong(CHECKSUM_OFFSET, crc.getValue());
+
+        OutputStream out = new FileOutputStream(filepath);
+        try {
+            out.write(bb.array());
+        } finally {
+            out.close();
+        }
+    }
+
+    private static long ipv6Bytes(long v6nodes) {
+        return 4 + 32 * v6nodes;
+    }
+
+    /**
+     * @return number of string indexes per location in an image
+     */
+    private static int locationFields(int version) {
+        return version >= 3 ? 4 : 2;
+    }
+
+    /**
+     * @return offset of the IPv6 section of a version 2+ image
+     */
+    private static int ipv6Offset(ByteBuffer bb) {
+        return HEADER_SIZE + 4 * (3 * bb.getInt(8) + locationFields(bb
+            .getInt(4)) * (bb.getInt(12) - 1) + bb.getInt(16) + 1)
+            + bb.getInt(20);
+    }
+
+    private static int stringId(Map<String, Integer> stringIds, String s) {
+        if (s == null)
+            return -1;
+        Integer id = stringIds.get(s);
+        if (id == null) {
+            id = stringIds.size();
+            stringIds.put(s, id);
+        }
+        return id;
+    }
+
+    /**
+     * Maps an image and checks its header, size and checksum.
+     *
+     * @return the whole image, positioned at 0
+     * @throws IOException
+     *             if the file is not a valid image
+     */
+    static ByteBuffer map(String filepath) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(filepath, "r");
+        ByteBuffer bb;
+        try {
+            FileChannel fc = file.getChannel();
+            if (fc.size() > Integer.MAX_VALUE)
+                throw new IOException("image too large: " + filepath);
+            bb = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+        } finally {
+            file.close();
+        }
+
+        if (bb.capacity() < HEADER_SIZE || bb.getInt(0) != MAGIC)
+            throw new IOException("not an ip database image: " + filepath);
+        int version = bb.getInt(4);
+        if (version < 1 || version > VERSION)
+            throw new IOException("unsupported image version " + version
+                + ": " + filepath);
+
+        long nodes = bb.getInt(8);
+        long locations = bb.getInt(12);
+        long strings = bb.getInt(16);
+        long length = HEADER_SIZE + 4L
+            * (3 * nodes + locationFields(version) * (locations - 1) + strings
+                + 1) + bb.getInt(20);
+        if (version > 1 && length + 4 <= bb.capacity())
+            length += ipv6Bytes(bb.getInt((int) length));
+        if (nodes < 1 || locations < 1 || bb.capacity() != length)
+            throw new IOException("truncated image: " + filepath);
+        if (bb.getLong(CHECKSUM_OFFSET) != checksum(bb))
+            throw new IOException("image checksum mismatch: " + filepath);
+        return bb;
+    }
+
+    private static long checksum(ByteBuffer bb) {
+        CRC32 crc = new CRC32();
+        byte[] chunk = new byte[64 * 1024];
+        ByteBuffer src = bb.duplicate();
+        src.position(HEADER_SIZE);
+        while (src.hasRemaining()) {
+            int n = Math.min(chunk.length, src.remaining());
+            src.get(chunk, 0, n);
+            crc.update(chunk, 0, n);
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Decodes the value dictionary of a mapped image into an empty one, so
+     * that ids are the same as in the image.
+     */
+    static void readDictionary(ByteBuffer bb, LocationDictionary dictionary)
+        throws IOException {
+        int nodes = bb.getInt(8);
+        int locations = bb.getInt(12);
+        int strings = bb.getInt(16);
+        int poolBytes = bb.getInt(20);
+
+        ByteBuffer src = bb.duplicate();
+        src.position(HEADER_SIZE + 12 * nodes);
+        IntBuffer ib = src.slice().asIntBuffer();
+        int fields = locationFields(bb.getInt(4));
+        int[] locationStrings = new int[fields * (locations - 1)];
+        ib.get(locationStrings);
+        int[] offsets = new int[strings + 1];
+        ib.get(offsets);
+
+        byte[] pool = new byte[poolBytes];
+        src.position(src.position() + 4 * ib.position());
+        src.get(pool);
+        String[] pooled = new String[strings];
+        for (int i = 0; i < strings; i++) {
+            pooled[i] = new String(pool, offsets[i], offsets[i + 1] - offsets[i],
+                "UTF-8");
+        }
+
+        for (int id = 1; id < locations; id++) {
+            int i = fields * (id - 1);
+            int interned = fields == 2 ? dictionary.intern(
+                pooled(pooled, locationStrings[i]),
+                pooled(pooled, locationStrings[i + 1])) : dictionary.intern(
+                pooled(pooled, locationStrings[i]),
+                pooled(pooled, locationStrings[i + 1]),
+                pooled(pooled, locationStrings[i + 2]),
+                pooled(pooled, locationStrings[i + 3]));
+            if (interned != id)
+                throw new IOException("duplicate location in image: " + id);
+        }
+    }
+
+    private static String pooled(String[] pooled, int i) throws IOException {
+        if (i == -1)
+            return null;
+        if (i < 0 || i >= pooled.length)
+            throw new IOException("invalid string index in image: " + i);
+        return pooled[i];
+    }
+
+    /**
+     * Loads an image into a tree.
+     *
+     * @throws IOException
+     *             if the file is not a valid image
+     */
+    static void read(String filepath, IPv4RadixIntTree tree) throws IOException {
+        ByteBuffer bb = map(filepath);
+        int nodes = bb.getInt(8);
+
+        ByteBuffer src = bb.duplicate();
+        src.position(HEADER_SIZE);
+        IntBuffer ib = src.slice().asIntBuffer();
+        int[] lefts = new int[nodes];
+        int[] rights = new int[nodes];
+        int[] values = new int[nodes];
+        ib.get(lefts);
+        ib.get(rights);
+        ib.get(values);
+
+        readDictionary(bb, tree.getDictionary());
+        tree.setNodes(lefts, rights, values);
+
+        if (bb.getInt(4) > 1) {
+            ByteBuffer v6 = bb.duplicate();
+            v6.position(ipv6Offset(bb));
+            int v6nodes = v6.getInt();
+            long[] keysHi = new long[v6nodes];
+            long[] keysLo = new long[v6nodes];
+            byte[] lens = new byte[v6nodes];
+            int[] v6lefts = new int[v6nodes];
+            int[] v6rights = new int[v6nodes];
+            int[] v6values = new int[v6nodes];
+            v6.asLongBuffer().get(keysHi);
+            v6.position(v6.position() + 8 * v6nodes);
+            v6.asLongBuffer().get(keysLo);
+            v6.position(v6.position() + 8 * v6nodes);
+            for (int i = 0; i < v6nodes; i++) {
+                lens[i] = (byte) v6.getInt();
+            }
+            IntBuffer v6ib = v6.asIntBuffer();
+            v6ib.get(v6lefts);
+            v6ib.get(v6rights);
+            v6ib.get(v6values);
+            if (v6nodes > 0)
+                tree.getIPv6().setNodes(keysHi, keysLo, lens, v6lefts,
+                    v6rights, v6values, v6nodes);
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package org.lic.ip.iplocator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Changes between two ipdb_all_* text databases, so that a live tree can be
+ * patched by {@link IPv4RadixIntTree#applyDelta(String)} instead of shipping
+ * and loading the whole database. One change per line, in UTF-8:
+ *
+ * <pre>
+ * + 1.0.1.0/24;中国;福建省;福州市;电信;1.0.1.208;256    add a prefix
+ * = 1.0.1.0/24;中国;福建省;福州市;联通;1.0.1.208;256    replace its value
+ * - 1.0.1.0/24                                           remove it
+ * </pre>
+ *
+ * Empty lines and lines starting with # are ignored.
+ *
+ * usage: DeltaFile &lt;old ipdb file&gt; &lt;new ipdb file&gt; &lt;delta file&gt;
+ */
+public class DeltaFile {
+    private static final Logger logger = LoggerFactory
+        .getLogger(DeltaFile.class);
+
+    public static final char ADD = '+';
+
+    public static final char REPLACE = '=';
+
+    public static final char REMOVE = '-';
+
+    private DeltaFile() {
+    }
+
+    /**
+     * Reads and checks the changes of a delta file.
+     *
+     * @return changes in file order, each one as "op record"
+     * @throws IOException
+     *             if a line is malformed
+     */
+    static List<String> read(String deltaPath) throws IOException {
+        BufferedReader br = new BufferedReader(new InputStreamReader(
+            new FileInputStream(deltaPath), "UTF-8"));
+        List<String> changes = new ArrayList<String>();
+        try {
+            String l;
+            int n = 0;
+            while ((l = br.readLine()) != null) {
+                n++;
+                if (l.length() == 0 || l.charAt(0) == '#')
+                    continue;
+                char op = l.charAt(0);
+                if (l.length() < 3 || l.charAt(1) != ' '
+                    || l.indexOf('/') < 0
+                    || (op != ADD && op != REPLACE && op != REMOVE)
+                    || (op != REMOVE && l.split(";").length < 5))
+                    throw new IOException("malformed delta line " + n + ": "
+                        + l);
+                changes.add(l);
+            }
+        } finally {
+            br.close();
+        }
+        return changes;
+    }
+
+    private static Map<String, String> readDatabase(String filepath)
+        throws IOException {
+        BufferedReader br = new BufferedReader(new InputStreamReader(
+            new FileInputStream(filepath), "UTF-8"));
+        Map<String, String> records = new LinkedHashMap<String, String>();
+        try {
+            String l;
+            while ((l = br.readLine()) != null) {
+                int pos = l.indexOf(';');
+                if (pos > 0)
+                    records.put(l.substring(0, pos), l);
+            }
+        } finally {
+            br.close();
+        }
+        return records;
+    }
+
+    /**
+     * Writes the changes turning one text database into another.
+     *
+     * @param oldPath
+     *            database the delta applies to
+     * @param newPath
+     *            database obtained once applied
+     * @param deltaPath
+     *            delta file to write
+     * @return number of changes
+     * @throws IOException
+     */
+    public static int diff(String oldPath, String newPath, String deltaPath)
+        throws IOException {
+        Map<String, String> oldRecords = readDatabase(oldPath);
+        Map<String, String> newRecords = readDatabase(newPath);
+
+        Writer writer = new OutputStreamWriter(new FileOutputStream(deltaPath),
+            "UTF-8");
+        int changes = 0;
+        try {
+            for (String network: oldRecords.keySet()) {
+                if (!newRecords.containsKey(network)) {
+                    writer.write(REMOVE + " " + network + "\n");
+                    changes++;
+                }
+            }
+            for (Map.Entry<String, String> entry: newRecords.entrySet()) {
+                String old = oldRecords.get(entry.getKey());
+                if (old == null) {
+                    writer.write(ADD + " " + entry.getValue() + "\n");
+                    changes++;
+                } else if (!old.equals(entry.getValue())) {
+                    writer.write(REPLACE + " " + entry.getValue() + "\n");
+                    changes++;
+                }
+            }
+        } finally {
+            writer.close();
+        }
+
+        logger.info("diff ok, {} -> {}: {} changes", new Object[] { oldPath,
+            newPath, changes });
+        return changes;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 2) {
+            diff(args[0], args[1], args[2]);
+        } else {
+            System.out.println("usage: DeltaFile <old ipdb file> <new ipdb file> <delta file>");
+            System.exit(1);
+        }
+    }
+}
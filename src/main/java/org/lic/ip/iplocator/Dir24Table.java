@@ -0,0 +1,196 @@
+package org.lic.ip.iplocator;
+
+import org.lic.ip.util.IPUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * DIR-24-8 direct-indexed lookup table: the loaded prefixes are expanded into
+ * a 2^24 entries table indexed by the first 24 bits of the address, and only
+ * the /24 networks holding longer (/25 - /32) prefixes get a 256 entries
+ * chunk in a second table. A lookup is one memory read, or two for those
+ * networks, at the cost of a fixed 32MB table.
+ *
+ * Entries are 16 bits: an entry >= 0 is the number of a value, an entry < 0
+ * holds the index of its chunk in the low 15 bits. Values are the distinct
+ * {@link IPLocation}s, not the dictionary ids, which also tell cities apart;
+ * {@link #getId(int)} answers the first id of the location, see
+ * {@link LocationDictionary#locationId(int)}. Up to 32767 distinct values and
+ * 32768 chunks are supported.
+ */
+public class Dir24Table implements IPv4Engine {
+    private static final Logger logger = LoggerFactory
+        .getLogger(Dir24Table.class);
+
+    private static final int TBL24_BITS = 24;
+
+    private static final int CHUNK_SIZE = 256;
+
+    private static final int MAX_ID = Short.MAX_VALUE;
+
+    private final short[] tbl24;
+
+    private short[] tblLong;
+
+    private int chunks;
+
+    private final IPLocation[] values;
+
+    /** first dictionary id of each value */
+    private final int[] valueIds;
+
+    private Dir24Table(IPv4RadixIntTree tree) {
+        LocationDictionary dictionary = tree.getDictionary();
+        int[] numbers = dictionary.locationNumbers();
+        valueIds = dictionary.firstIds(numbers);
+        if (valueIds.length - 1 > MAX_ID)
+            throw new IllegalStateException("too many distinct values: "
+                + valueIds.length);
+        values = new IPLocation[valueIds.length];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = dictionary.get(valueIds[i]);
+        }
+
+        tbl24 = new short[1 << TBL24_BITS];
+        tblLong = new short[64 * CHUNK_SIZE];
+        expand(tree, numbers, IPv4RadixIntTree.ROOT_PTR, 0, 0, -1,
+            LocationDictionary.NO_VALUE_ID);
+
+        tblLong = Arrays.copyOf(tblLong, chunks * CHUNK_SIZE);
+    }
+
+    /**
+     * Builds a DIR-24-8 table holding the same prefixes as a given tree.
+     *
+     * @param tree
+     *            fully loaded binary radix tree
+     * @return a table answering the same lookups as tree
+     * @throws IllegalStateException
+     *             if the tree has more than 32767 distinct IPLocations, i.e.
+     *             (country, area) pairs whatever the number of lines, or too
+     *             many /24 networks with long prefixes for 16 bits entries
+     */
+    public static Dir24Table build(IPv4RadixIntTree tree) {
+        long start = System.currentTimeMillis();
+        Dir24Table table = new Dir24Table(tree);
+        logger.info("build ok, tbl24: {} bytes, tbllong: {} chunks ({} bytes), "
+            + "values: {}, cost: {}ms", new Object[] { table.tbl24.length * 2L,
+            table.chunks, table.tblLong.length * 2L, table.values.length,
+            System.currentTimeMillis() - start });
+        return table;
+    }
+
+    /**
+     * Builds a DIR-24-8 table from a local ipdb file.
+     *
+     * @param filepath
+     *            ipdb file in the ipdb_all_* text format
+     * @return a fully constructed table
+     * @throws java.io.IOException
+     */
+    public static Dir24Table load(String filepath) throws IOException {
+        return build(IPv4RadixIntTree.load(filepath));
+    }
+
+    /**
+     * @return bytes held by the two tables
+     */
+    public long memoryBytes() {
+        return (tbl24.length + tblLong.length) * 2L;
+    }
+
+    /**
+     * Pushes the value number of a binary node (or the inherited one) down to
+     * the entries it covers, in tbl24 when chunk is -1, or in a given chunk of
+     * tblLong.
+     */
+    private void expand(IPv4RadixIntTree tree, int[] numbers, int node,
+        int depth, int index, int chunk, int inherited) {
+        int value = tree.valueOf(node);
+        int number = value != LocationDictionary.NO_VALUE_ID ? numbers[value]
+            : inherited;
+        int left = tree.leftOf(node);
+        int right = tree.rightOf(node);
+
+        if (depth == TBL24_BITS) {
+            if (left == IPv4RadixIntTree.NULL_PTR
+                && right == IPv4RadixIntTree.NULL_PTR) {
+                tbl24[index] = (short) number;
+                return;
+            }
+            int c = allocateChunk(number);
+            tbl24[index] = (short) (c | 0x8000);
+            chunk = c;
+            index = 0;
+        } else if (chunk < 0) {
+            int span = TBL24_BITS - depth;
+            Arrays.fill(tbl24, index << span, (index + 1) << span,
+                (short) number);
+        } else {
+            int span = 32 - depth;
+            int base = chunk * CHUNK_SIZE;
+            Arrays.fill(tblLong, base + (index << span), base
+                + ((index + 1) << span), (short) number);
+        }
+
+        if (left != IPv4RadixIntTree.NULL_PTR)
+            expand(tree, numbers, left, depth + 1, index << 1, chunk, number);
+        if (right != IPv4RadixIntTree.NULL_PTR)
+            expand(tree, numbers, right, depth + 1, (index << 1) | 1, chunk,
+                number);
+    }
+
+    private int allocateChunk(int number) {
+        if (chunks > MAX_ID)
+            throw new IllegalStateException("too many long prefix chunks: "
+                + chunks);
+        if ((chunks + 1) * CHUNK_SIZE > tblLong.length)
+            tblLong = Arrays.copyOf(tblLong, tblLong.length * 2);
+        int c = chunks++;
+        Arrays.fill(tblLong, c * CHUNK_SIZE, (c + 1) * CHUNK_SIZE,
+            (short) number);
+        return c;
+    }
+
+    @Override
+    public IPLocation get(String ipStr) {
+        long key = IPUtil.parseIPv4(ipStr);
+        if (key < 0)
+            return IPv4RadixIntTree.NO_VALUE;
+        return get((int) key);
+    }
+
+    @Override
+    public IPLocation getIPLocation(String ip) {
+        return get(ip);
+    }
+
+    @Override
+    public IPLocation get(long key) {
+        return get((int) key);
+    }
+
+    @Override
+    public IPLocation get(int key) {
+        return values[entry(key)];
+    }
+
+    /**
+     * @return the first dictionary id of the location, see
+     *         {@link LocationDictionary#locationId(int)}
+     */
+    @Override
+    public int getId(int key) {
+        return valueIds[entry(key)];
+    }
+
+    private int entry(int key) {
+        int e = tbl24[key >>> 8];
+        if (e < 0)
+            e = tblLong[((e & 0x7fff) << 8) | (key & 0xff)];
+        return e;
+    }
+}
@@ -0,0 +1,46 @@
+package org.lic.ip.iplocator;
+
+import org.apache.commons.lang.time.StopWatch;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Compiles an ipdb_all_* text database into a versioned, checksummed binary
+ * image, which {@link IPv4RadixIntTree#load(String)} (and the shared instance,
+ * if the image replaces the resource) loads without any per-line parsing.
+ *
+ * usage: IPDatabaseCompiler &lt;ipdb text file&gt; &lt;image file&gt;
+ */
+public class IPDatabaseCompiler {
+    private static final Logger logger = LoggerFactory
+        .getLogger(IPDatabaseCompiler.class);
+
+    private IPDatabaseCompiler() {
+    }
+
+    public static void compile(String textPath, String imagePath)
+        throws IOException {
+        StopWatch sw = new StopWatch();
+        sw.start();
+
+        IPv4RadixIntTree tree = IPv4RadixIntTree.load(textPath);
+        tree.writeImage(imagePath);
+
+        sw.stop();
+        logger.info("compile ok, {} -> {} ({} bytes), cost: {}ms",
+            new Object[] { textPath, imagePath,
+                new File(imagePath).length(), sw.getTime() });
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 1) {
+            compile(args[0], args[1]);
+        } else {
+            System.out.println("usage: IPDatabaseCompiler <ipdb file> <image file>");
+            System.exit(1);
+        }
+    }
+}
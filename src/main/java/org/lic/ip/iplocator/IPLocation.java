@@ -1,7 +1,8 @@
 package org.lic.ip.iplocator;
 
 /**
- * 用来封装ip相关信息，目前只有两个字段，ip所在的国家和地区
+ * 用来封装ip相关信息，目前只有两个字段，ip所在的国家和地区。
+ * 实例不可变，同一个地点在{@link LocationDictionary}中只保存一份，供所有查询共享
  *
  * @author lc
  */
@@ -11,15 +12,46 @@ public class IPLocation {
 
     public static final String UNKNOWN_AREA = "unknown_area";
 
-    public String country;
+    public final String country;
 
-    public String area;
+    public final String area;
+
+    public IPLocation(String country, String area) {
+        this.country = country;
+        this.area = area;
+    }
 
     public static IPLocation getNullInstance() {
-        IPLocation ipl = new IPLocation();
-        ipl.country = UNKNOWN_COUNTRY;
-        ipl.area = UNKNOWN_AREA;
-        return ipl;
+        return new IPLocation(UNKNOWN_COUNTRY, UNKNOWN_AREA);
+    }
+
+    /**
+     * @return 是否为未知地点，即各引擎查不到时返回的getNullInstance()
+     */
+    public boolean isUnknown() {
+        return UNKNOWN_COUNTRY.equals(country);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+
+        IPLocation that = (IPLocation) o;
+        return (country != null ? country.equals(that.country)
+            : that.country == null)
+            && (area != null ? area.equals(that.area) : that.area == null);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = country != null ? country.hashCode() : 0;
+        result = 31 * result + (area != null ? area.hashCode() : 0);
+        return result;
     }
 
     @Override
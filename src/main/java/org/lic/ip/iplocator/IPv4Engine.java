@@ -0,0 +1,46 @@
+package org.lic.ip.iplocator;
+
+/**
+ * Common lookup contract of the IPv4 engines, so that the in-memory layout
+ * can be switched by configuration (see {@link IPv4Engines}) without touching
+ * callers. All the methods return {@link IPv4RadixIntTree#NO_VALUE} when no
+ * network matches.
+ *
+ * {@link #getIPLocation(String)} is the same lookup as {@link #get(String)}.
+ */
+public interface IPv4Engine extends IpLocator {
+
+    /**
+     * @param ipStr
+     *            IPv4 address to look up, in string form (i.e. "a.b.c.d")
+     * @return value at most specific IPv4 network for a given address, or
+     *         NO_VALUE if ipStr is not a valid address
+     */
+    IPLocation get(String ipStr);
+
+    /**
+     * @param key
+     *            IPv4 address to look up, in the low 32 bits
+     * @return value at most specific IPv4 network for a given address
+     */
+    IPLocation get(long key);
+
+    /**
+     * @param key
+     *            IPv4 address to look up, as the 32 bits of a primitive int
+     * @return value at most specific IPv4 network for a given address
+     */
+    IPLocation get(int key);
+
+    /**
+     * @param key
+     *            IPv4 address to look up, as the 32 bits of a primitive int
+     * @return id of the value at most specific IPv4 network, in the
+     *         {@link LocationDictionary} of the tree the engine was built
+     *         from, or {@link LocationDictionary#NO_VALUE_ID}; engines that
+     *         keep only the IPLocations, {@link Dir24Table} and
+     *         {@link IntervalTable}, answer the first id of the location,
+     *         see {@link LocationDictionary#locationId(int)}
+     */
+    int getId(int key);
+}
@@ -0,0 +1,121 @@
+package org.lic.ip.iplocator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+
+/**
+ * Chooses the IPv4 lookup engine by name, the default one being read from the
+ * system property <code>iplocator.engine</code>:
+ * <ul>
+ * <li>radix - the binary {@link IPv4RadixIntTree} itself (default)</li>
+ * <li>multibit - a 16-8-8 {@link MultibitTrie}</li>
+ * <li>dir24 - a DIR-24-8 {@link Dir24Table}, 32MB or more</li>
+ * <li>interval - the sorted ranges of an {@link IntervalTable}</li>
+ * <li>compact - the binary tree renumbered for cache locality, a
+ * {@link CompactRadixTree}</li>
+ * <li>mapped - a {@link MappedRadixTree} over the image file given by the
+ * system property <code>iplocator.image</code></li>
+ * </ul>
+ * All the other engines are built from the data loaded by
+ * {@link IPv4RadixIntTree#getInstance()}.
+ */
+public class IPv4Engines {
+    private static final Logger logger = LoggerFactory
+        .getLogger(IPv4Engines.class);
+
+    public static final String ENGINE_PROPERTY = "iplocator.engine";
+
+    public static final String IMAGE_PROPERTY = "iplocator.image";
+
+    public static final String RADIX = "radix";
+
+    public static final String MULTIBIT = "multibit";
+
+    public static final String DIR24 = "dir24";
+
+    public static final String INTERVAL = "interval";
+
+    public static final String MAPPED = "mapped";
+
+    public static final String COMPACT = "compact";
+
+    private static class SingletonHolder {
+        public static final IPv4Engine instance = createDefault();
+    }
+
+    private IPv4Engines() {
+    }
+
+    /**
+     * @return the engine configured by <code>iplocator.engine</code>
+     */
+    public static IPv4Engine getEngine() {
+        return SingletonHolder.instance;
+    }
+
+    private static IPv4Engine createDefault() {
+        String name = System.getProperty(ENGINE_PROPERTY, RADIX);
+        if (MAPPED.equals(name)) {
+            String imagePath = System.getProperty(IMAGE_PROPERTY);
+            try {
+                return MappedRadixTree.open(imagePath);
+            } catch (Exception e) {
+                logger.error("can not map image " + imagePath
+                    + ", fall back to " + RADIX, e);
+                return IPv4RadixIntTree.getInstance();
+            }
+        }
+        return create(name, IPv4RadixIntTree.getInstance());
+    }
+
+    /**
+     * Loads an engine of a given name from a local ipdb file.
+     *
+     * @param name
+     *            engine name, see the class comment
+     * @param filepath
+     *            ipdb file, a compiled image for the mapped engine
+     * @return a fully constructed engine
+     * @throws IOException
+     *             if the file can not be loaded
+     * @throws IllegalArgumentException
+     *             if the name is unknown
+     */
+    public static IPv4Engine load(String name, String filepath)
+        throws IOException {
+        if (MAPPED.equals(name))
+            return MappedRadixTree.open(filepath);
+        return create(name, IPv4RadixIntTree.load(filepath));
+    }
+
+    /**
+     * Builds an engine of a given name from a loaded tree. The mapped engine
+     * is opened from its image instead, see {@link MappedRadixTree#open}.
+     *
+     * @param name
+     *            engine name, see the class comment
+     * @param tree
+     *            fully loaded binary radix tree
+     * @return engine holding the same prefixes as tree
+     * @throws IllegalArgumentException
+     *             if the name is unknown
+     */
+    public static IPv4Engine create(String name, IPv4RadixIntTree tree) {
+        if (RADIX.equals(name))
+            return tree;
+        if (MULTIBIT.equals(name))
+            return MultibitTrie.build(tree);
+        if (DIR24.equals(name))
+            return Dir24Table.build(tree);
+        if (INTERVAL.equals(name))
+            return IntervalTable.build(tree);
+        if (COMPACT.equals(name))
+            return CompactRadixTree.build(tree);
+        if (MAPPED.equals(name))
+            throw new IllegalArgumentException(
+                "mapped engine is opened from an image, not built from a tree");
+        throw new IllegalArgumentException("unknown engine: " + name);
+    }
+}
@@ -17,13 +17,16 @@
 package org.lic.ip.iplocator;
 
 import org.apache.commons.lang.time.StopWatch;
+import org.lic.ip.util.IPUtil;
+import org.lic.ip.util.TreeStats;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
-import java.net.InetAddress;
-import java.net.UnknownHostException;
-import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.List;
 
 /**
  * A minimalistic, memory size-savvy and fairly fast radix tree (AKA Patricia
@@ -36,7 +39,7 @@ import java.nio.ByteBuffer;
 /**
  * https://github.com/openstat/ip-radix-tree
  */
-public class IPv4RadixIntTree {
+public class IPv4RadixIntTree implements IPv4Engine {
     private static final Logger logger = LoggerFactory
         .getLogger(IPv4RadixIntTree.class);
 
@@ -46,17 +49,42 @@ public class IPv4RadixIntTree {
      */
     public static final IPLocation NO_VALUE = IPLocation.getNullInstance();
 
-    private static final int NULL_PTR = -1;
+    /**
+     * Number of threads loading a text database, 1 (the default) for a
+     * sequential load, see {@link ParallelTreeLoader}.
+     */
+    public static final String LOAD_THREADS_PROPERTY = "iplocator.load.threads";
 
-    private static final int ROOT_PTR = 0;
+    static final int NULL_PTR = -1;
+
+    static final int ROOT_PTR = 0;
 
     private static final long MAX_IPV4_BIT = 0x80000000L;
 
+    /**
+     * Number of keys walking the tree together in {@link #getAll}.
+     */
+    public static final int BATCH_LANES = 8;
+
     private int[] rights;
 
     private int[] lefts;
 
-    private IPLocation[] values;
+    /**
+     * Value ids in {@link #dictionary}, NO_VALUE_ID for nodes without a value.
+     */
+    private int[] values;
+
+    /**
+     * Null in a tree created by {@link #nodesOnly}.
+     */
+    private final LocationDictionary dictionary;
+
+    /**
+     * IPv6 prefixes of the database, sharing {@link #dictionary}; null in a
+     * tree created by {@link #nodesOnly}.
+     */
+    private IPv6RadixTree ipv6;
 
     private int allocatedSize;
 
@@ -71,6 +99,7 @@ public class IPv4RadixIntTree {
     }
 
     private IPv4RadixIntTree() {
+        this(true);
         StopWatch sw = new StopWatch();
         sw.start();
 
@@ -78,11 +107,7 @@ public class IPv4RadixIntTree {
             String filepath = getClass().getClassLoader()
                 .getResource("ipdb_all_2015-01-19").getPath();
 
-            int lines = countLinesInLocalFile(filepath);
-            logger.info("file lines: {}", lines);
-
-            init(lines);
-            loadFromLocalFile(filepath);
+            load0(filepath);
         } catch (Exception e) {
             logger.error(e.getMessage(), e);
         }
@@ -91,58 +116,202 @@ public class IPv4RadixIntTree {
         logger.info("init cost: {}ms", sw.getTime());
     }
 
-    private void init(int allocatedSize) {
+    private IPv4RadixIntTree(String filepath) throws IOException {
+        this(true);
+        load0(filepath);
+    }
+
+    IPv4RadixIntTree(int allocatedSize) {
+        this(true);
+        init(allocatedSize);
+    }
+
+    private IPv4RadixIntTree(boolean withLocations) {
+        dictionary = withLocations ? new LocationDictionary() : null;
+        ipv6 = withLocations ? new IPv6RadixTree(this, 1) : null;
+    }
+
+    /**
+     * Creates a tree of node arrays only, without a dictionary nor an IPv6
+     * tree, for the /8 subtrees that {@link ParallelTreeLoader} builds and
+     * {@link #graft grafts}: only {@link #put(long, long, int)} and
+     * {@link #size()} may be used on it.
+     */
+    static IPv4RadixIntTree nodesOnly(int allocatedSize) {
+        IPv4RadixIntTree tree = new IPv4RadixIntTree(false);
+        tree.init(allocatedSize);
+        return tree;
+    }
+
+    /**
+     * Copies a tree with room for extraNodes more nodes; the dictionary is
+     * rebuilt in id order so that ids stay the same.
+     */
+    private IPv4RadixIntTree(IPv4RadixIntTree source, int extraNodes) {
+        allocatedSize = source.size + extraNodes;
+        size = source.size;
+        lefts = Arrays.copyOf(source.lefts, allocatedSize);
+        rights = Arrays.copyOf(source.rights, allocatedSize);
+        values = Arrays.copyOf(source.values, allocatedSize);
+
+        dictionary = new LocationDictionary();
+        LocationDictionary sourceDictionary = source.dictionary;
+        for (int id = 1; id < sourceDictionary.size(); id++) {
+            dictionary.intern(sourceDictionary, id);
+        }
+        ipv6 = new IPv6RadixTree(this, source.ipv6);
+    }
+
+    /**
+     * Loads a standalone tree, independent of the shared instance, from a local
+     * ipdb file.
+     *
+     * @param filepath
+     *            ipdb file, either in the ipdb_all_* text format or compiled
+     *            by {@link IPDatabaseCompiler}
+     * @return a fully constructed tree
+     * @throws java.io.IOException
+     */
+    public static IPv4RadixIntTree load(String filepath) throws IOException {
+        return new IPv4RadixIntTree(filepath);
+    }
+
+    private void load0(String filepath) throws IOException {
+        if (DatabaseImage.isImage(filepath)) {
+            DatabaseImage.read(filepath, this);
+            logger.info("image load ok, tree size: {}, locations: {}", size(),
+                dictionary.size());
+            return;
+        }
+
+        int threads = Integer.getInteger(LOAD_THREADS_PROPERTY, 1);
+        if (threads > 1) {
+            ParallelTreeLoader.load(this, filepath, threads);
+            return;
+        }
+
+        loadFromLocalFile(filepath);
+    }
+
+    /**
+     * Writes this tree as a binary image, which loads without parsing.
+     *
+     * @param filepath
+     *            image file to write
+     * @throws java.io.IOException
+     */
+    public void writeImage(String filepath) throws IOException {
+        DatabaseImage.write(filepath, size, lefts, rights, values, dictionary,
+            ipv6);
+    }
+
+    /**
+     * Replaces the nodes by the ones of an image, their values having been
+     * interned into the dictionary in id order.
+     */
+    void setNodes(int[] lefts, int[] rights, int[] values) {
+        this.lefts = lefts;
+        this.rights = rights;
+        this.values = values;
+        allocatedSize = size = lefts.length;
+    }
+
+    void init(int allocatedSize) {
         this.allocatedSize = allocatedSize;
 
         rights = new int[this.allocatedSize];
         lefts = new int[this.allocatedSize];
-        values = new IPLocation[this.allocatedSize];
+        values = new int[this.allocatedSize];
 
         size = 1;
         lefts[0] = NULL_PTR;
         rights[0] = NULL_PTR;
-        values[0] = NO_VALUE;
-    }
-
-    private int countLinesInLocalFile(String filepath) throws IOException {
-        BufferedReader br = new BufferedReader(new FileReader(filepath));
-        int n = 0;
-        while (br.readLine() != null) {
-            n++;
-        }
-        br.close();
-        return n;
+        values[0] = LocationDictionary.NO_VALUE_ID;
     }
 
     /**
      * Helper function that reads IPv4 radix tree from a local file in
-     * tab-separated format: (IPv4 net => value)
+     * ipdb_all_* format (see {@link TextRecordReader}), in a single pass over
+     * its mapped bytes.
      * 
      * @param filepath
      *            name of a local file to read
-     * @return a fully constructed IPv4 radix tree from that file
      * @throws java.io.IOException
      */
     private void loadFromLocalFile(String filepath) throws IOException {
-        BufferedReader br = new BufferedReader(new InputStreamReader(
-            new FileInputStream(filepath), "UTF-8"));
-        String l;
-        IPLocation value;
+        RandomAccessFile file = new RandomAccessFile(filepath, "r");
+        try {
+            FileChannel fc = file.getChannel();
+            MappedByteBuffer bb = fc.map(FileChannel.MapMode.READ_ONLY, 0,
+                fc.size());
+            // 每行约50字节，按行数预估节点数，不够再扩容
+            init((int) Math.max(fc.size() / 50, 1));
+
+            // 1.0.1.0/24;中国;福建省;福州市;电信;1.0.1.208;256
+            TextRecordReader reader = new TextRecordReader(bb, dictionary);
+            while (reader.next()) {
+                if (reader.ipv6)
+                    ipv6.put(reader.networkHi, reader.networkLo,
+                        reader.prefixlen, reader.id);
+                else
+                    put(reader.network, maskOf(reader.prefixlen), reader.id);
+            }
+        } finally {
+            file.close();
+        }
+        trimToSize();
 
-        // 1.0.1.0/24;中国;福建省;福州市;电信;1.0.1.208;256
-        while ((l = br.readLine()) != null) {
-            String[] c = l.split(";");
+        logger.info("load ok, tree size: {}, ipv6 tree size: {}, locations: {}",
+            new Object[] { size(), ipv6.size(), dictionary.size() });
+    }
 
-            // value = String.format("%s %s %s %s", c[1], c[2], c[3], c[4]);
-            value = new IPLocation();
-            value.country = c[1].equals("中国") ? c[2] : c[1]; // 如果是国内ip，country字段放省名
-            value.area = c[4]; // 运营商名
+    static int internLine(LocationDictionary dictionary, String[] c) {
+        // country;province;city;isp
+        return dictionary.intern(c[1], c[2], c[3], c[4]);
+    }
 
-            put(c[0], value);
+    /**
+     * Applies a delta file (see {@link DeltaFile}) to a copy of this tree,
+     * which keeps serving lookups unchanged. Apart from copying the node
+     * arrays, the cost is proportional to the number of changes.
+     *
+     * @param deltaPath
+     *            delta file to apply
+     * @return the patched copy
+     * @throws java.io.IOException
+     *             if the delta file can not be read or is malformed
+     */
+    public IPv4RadixIntTree applyDelta(String deltaPath) throws IOException {
+        List<String> changes = DeltaFile.read(deltaPath);
+        // a put creates at most one node per prefix bit
+        IPv4RadixIntTree tree = new IPv4RadixIntTree(this,
+            32 * changes.size() + 1);
+
+        int puts = 0;
+        int removes = 0;
+        int missing = 0;
+        for (String change: changes) {
+            String record = change.substring(2);
+            String[] c = record.split(";");
+            boolean v6 = c[0].indexOf(':') >= 0;
+            if (change.charAt(0) == DeltaFile.REMOVE) {
+                removes++;
+                if (!(v6 ? tree.ipv6.remove(c[0]) : tree.remove(c[0])))
+                    missing++;
+            } else {
+                int value = internLine(tree.dictionary, c);
+                if (v6)
+                    tree.ipv6.put(c[0], value);
+                else
+                    tree.put(c[0], value);
+                puts++;
+            }
         }
+        tree.trimToSize();
 
-        br.close();
-        logger.info("load ok, tree size: {}", size());
+        logger.info("delta ok, {}: {} puts, {} removes ({} missing), tree size: {}",
+            new Object[] { deltaPath, puts, removes, missing, tree.size() });
+        return tree;
     }
 
     public void prefixMerge() {
@@ -158,20 +327,72 @@ public class IPv4RadixIntTree {
      *            c, d are IPv4 octets (in decimal) and "e" is a netmask in CIDR
      *            notation
      * @param value
-     *            an arbitrary value that would be stored under a given key
-     * @throws java.net.UnknownHostException
+     *            id of the value in the dictionary
+     * @throws IllegalArgumentException
+     *             if the network is not a valid IPv4 address
      */
-    private void put(String ipNet, IPLocation value)
-        throws UnknownHostException {
+    private void put(String ipNet, int value) {
+        put(networkOf(ipNet), netmaskOf(ipNet), value);
+    }
+
+    static long networkOf(String ipNet) {
         int pos = ipNet.indexOf('/');
         String ipStr = ipNet.substring(0, pos);
-        long ip = inet_aton(ipStr);
+        long ip = IPUtil.parseIPv4(ipStr);
+        if (ip < 0) {
+            throw new IllegalArgumentException("invalid ip network: " + ipNet);
+        }
+        return ip;
+    }
 
-        String netmaskStr = ipNet.substring(pos + 1);
-        int cidr = Integer.parseInt(netmaskStr);
-        long netmask = ((1L << (32 - cidr)) - 1L) ^ 0xffffffffL;
+    static int prefixlenOf(String ipNet) {
+        String netmaskStr = ipNet.substring(ipNet.indexOf('/') + 1);
+        return Integer.parseInt(netmaskStr);
+    }
+
+    private static long netmaskOf(String ipNet) {
+        return maskOf(prefixlenOf(ipNet));
+    }
+
+    static long maskOf(int prefixlen) {
+        return ((1L << (32 - prefixlen)) - 1L) ^ 0xffffffffL;
+    }
+
+    /**
+     * Clears the value stored under a prefix, using a string representation
+     * of IPv4 prefix. Nodes are never removed, the prefix just stops matching.
+     *
+     * @param ipNet
+     *            IPv4 network as a string in form of "a.b.c.d/e"
+     * @return true if the prefix had a value
+     */
+    private boolean remove(String ipNet) {
+        return remove(networkOf(ipNet), netmaskOf(ipNet));
+    }
+
+    /**
+     * Clears the value stored under a prefix.
+     *
+     * @param key
+     *            IPv4 network prefix
+     * @param mask
+     *            IPv4 netmask, see {@link #put(long, long, int)}
+     * @return true if the prefix had a value
+     */
+    boolean remove(long key, long mask) {
+        long bit = MAX_IPV4_BIT;
+        int node = ROOT_PTR;
+
+        while ((bit & mask) != 0) {
+            node = ((key & bit) != 0) ? rights[node] : lefts[node];
+            if (node == NULL_PTR)
+                return false;
+            bit >>= 1;
+        }
 
-        put(ip, netmask, value);
+        boolean removed = values[node] != LocationDictionary.NO_VALUE_ID;
+        values[node] = LocationDictionary.NO_VALUE_ID;
+        return removed;
     }
 
     /**
@@ -184,9 +405,9 @@ public class IPv4RadixIntTree {
      *            0xffffff00L = 4294967040L corresponds to 255.255.255.0 AKA /24
      *            network bitmask)
      * @param value
-     *            an arbitrary value that would be stored under a given key
+     *            id of the value in the dictionary
      */
-    private void put(long key, long mask, IPLocation value) {
+    void put(long key, long mask, int value) {
         long bit = MAX_IPV4_BIT;
         int node = ROOT_PTR;
         int next = ROOT_PTR;
@@ -213,7 +434,7 @@ public class IPv4RadixIntTree {
                 expandAllocatedSize();
 
             next = size;
-            values[next] = NO_VALUE;
+            values[next] = LocationDictionary.NO_VALUE_ID;
             rights[next] = NULL_PTR;
             lefts[next] = NULL_PTR;
 
@@ -231,6 +452,61 @@ public class IPv4RadixIntTree {
         values[node] = value;
     }
 
+    /**
+     * Links a subtree, built from the prefixes of one /8 network shifted left
+     * by 8 bits, under the node of that network. The network must not have a
+     * node yet, i.e. only shorter prefixes may have been put.
+     *
+     * @param octet
+     *            first octet of the network
+     * @param subtree
+     *            tree whose root stands for the /8 network
+     */
+    void graft(int octet, IPv4RadixIntTree subtree) {
+        long key = (long) octet << 24;
+        int node = ROOT_PTR;
+
+        for (long bit = MAX_IPV4_BIT; bit > 0x800000L; bit >>= 1) {
+            int next = ((key & bit) != 0) ? rights[node] : lefts[node];
+            if (next == NULL_PTR) {
+                if (size == allocatedSize)
+                    expandAllocatedSize();
+
+                next = size;
+                values[next] = LocationDictionary.NO_VALUE_ID;
+                rights[next] = NULL_PTR;
+                lefts[next] = NULL_PTR;
+
+                if ((key & bit) != 0) {
+                    rights[node] = next;
+                } else {
+                    lefts[node] = next;
+                }
+                size++;
+            }
+            node = next;
+        }
+
+        // subtree node i > 0 becomes node base + i, its root becomes node
+        int base = size - 1;
+        while (allocatedSize < base + subtree.size)
+            expandAllocatedSize();
+
+        values[node] = subtree.values[ROOT_PTR];
+        lefts[node] = graftPtr(subtree.lefts[ROOT_PTR], base);
+        rights[node] = graftPtr(subtree.rights[ROOT_PTR], base);
+        for (int i = 1; i < subtree.size; i++) {
+            values[base + i] = subtree.values[i];
+            lefts[base + i] = graftPtr(subtree.lefts[i], base);
+            rights[base + i] = graftPtr(subtree.rights[i], base);
+        }
+        size = base + subtree.size;
+    }
+
+    private static int graftPtr(int ptr, int base) {
+        return ptr == NULL_PTR ? NULL_PTR : base + ptr;
+    }
+
     private void expandAllocatedSize() {
         int oldSize = allocatedSize;
         allocatedSize = allocatedSize * 2;
@@ -244,7 +520,7 @@ public class IPv4RadixIntTree {
         System.arraycopy(rights, 0, newRights, 0, oldSize);
         rights = newRights;
 
-        IPLocation[] newValues = new IPLocation[allocatedSize];
+        int[] newValues = new int[allocatedSize];
         System.arraycopy(values, 0, newValues, 0, oldSize);
         values = newValues;
     }
@@ -253,14 +529,24 @@ public class IPv4RadixIntTree {
      * Selects a value for a given IPv4 address, traversing tree and choosing
      * most specific value available for a given address.
      *
+     * The address is parsed in place, without <code>InetAddress</code> (and
+     * so without any DNS resolution) or allocation.
+     *
      * @param ipStr
      *            IPv4 address to look up, in string form (i.e. "a.b.c.d")
      * @return value at most specific IPv4 network in a tree for a given IPv4
-     *         address
-     * @throws java.net.UnknownHostException
+     *         address, or {@link #NO_VALUE} if ipStr is not a valid address
      */
     public IPLocation get(String ipStr) {
-        return get(inet_aton(ipStr));
+        long key = IPUtil.parseIPv4(ipStr);
+        if (key < 0)
+            return NO_VALUE;
+        return get((int) key);
+    }
+
+    @Override
+    public IPLocation getIPLocation(String ip) {
+        return get(ip);
     }
 
     /**
@@ -273,31 +559,248 @@ public class IPv4RadixIntTree {
      *         address
      */
     public IPLocation get(long key) {
-        long bit = MAX_IPV4_BIT;
-        IPLocation value = NO_VALUE;
+        return get((int) key);
+    }
+
+    /**
+     * Selects a value for a given IPv4 address, traversing tree and choosing
+     * most specific value available for a given address.
+     *
+     * @param key
+     *            IPv4 address to look up, as the 32 bits of a primitive int
+     *            (i.e. 0x7f000001 for 127.0.0.1)
+     * @return value at most specific IPv4 network in a tree for a given IPv4
+     *         address
+     */
+    public IPLocation get(int key) {
+        return dictionary.get(getId(key));
+    }
+
+    /**
+     * Selects the id of the value for a given IPv4 address, traversing tree
+     * and choosing most specific value available for a given address.
+     *
+     * @param key
+     *            IPv4 address to look up, as the 32 bits of a primitive int
+     * @return id in {@link #getDictionary()} of the value at most specific
+     *         IPv4 network, or NO_VALUE_ID
+     */
+    public int getId(int key) {
+        int bit = (int) MAX_IPV4_BIT;
+        int value = LocationDictionary.NO_VALUE_ID;
         int node = ROOT_PTR;
 
         while (node != NULL_PTR) {
-            if (values[node] != NO_VALUE)
+            if (values[node] != LocationDictionary.NO_VALUE_ID)
                 value = values[node];
             node = ((key & bit) != 0) ? rights[node] : lefts[node];
-            bit >>= 1;
+            bit >>>= 1;
         }
 
         return value;
     }
 
-    private static long inet_aton(String ipStr) {
-        try {
-            ByteBuffer bb = ByteBuffer.allocate(8);
-            bb.putInt(0);
-            bb.put(InetAddress.getByName(ipStr).getAddress());
-            bb.rewind();
-            return bb.getLong();
-        } catch (UnknownHostException e) {
-            logger.error(e.getMessage(), e);
+    /**
+     * Looks up one attribute of the location of a given IPv4 address, e.g.
+     * the city, which {@link IPLocation} does not carry.
+     *
+     * @param ipStr
+     *            IPv4 address to look up, in string form (i.e. "a.b.c.d")
+     * @return value of the attribute at most specific IPv4 network, null if
+     *         no network matches or ipStr is not a valid address
+     */
+    public String get(String ipStr, LocationDictionary.Attribute attribute) {
+        long key = IPUtil.parseIPv4(ipStr);
+        if (key < 0)
+            return null;
+        return dictionary.get(getId((int) key), attribute);
+    }
+
+    /**
+     * Looks up any subset of the attributes of the location of a given IPv4
+     * address with a single walk, reading one column per attribute.
+     *
+     * @param key
+     *            IPv4 address to look up, as the 32 bits of a primitive int
+     * @param attributes
+     *            attributes to read
+     * @param out
+     *            receives the value of attributes[i] at i, null if no network
+     *            matches
+     */
+    public void get(int key, LocationDictionary.Attribute[] attributes,
+        String[] out) {
+        if (out.length < attributes.length)
+            throw new IllegalArgumentException("out too short: " + out.length
+                + " < " + attributes.length);
+        int id = getId(key);
+        for (int i = 0; i < attributes.length; i++) {
+            out[i] = dictionary.get(id, attributes[i]);
         }
-        return 0;
+    }
+
+    /**
+     * Looks up many addresses at once: groups of {@link #BATCH_LANES} keys
+     * walk down the tree in lockstep, one level per step, so that the node
+     * loads of a group are independent and their cache misses overlap instead
+     * of stalling one after the other. Gives the same ids as
+     * {@link #getId(int)}.
+     *
+     * @param ips
+     *            IPv4 addresses to look up, as in {@link #getId(int)}
+     * @param outIds
+     *            receives the id of every address, at the same index
+     * @throws IllegalArgumentException
+     *             if outIds is shorter than ips
+     */
+    public void getAll(int[] ips, int[] outIds) {
+        if (outIds.length < ips.length)
+            throw new IllegalArgumentException("outIds too short: "
+                + outIds.length + " < " + ips.length);
+
+        int[] nodes = new int[BATCH_LANES];
+        for (int from = 0; from < ips.length; from += BATCH_LANES) {
+            getGroup(ips, from, Math.min(BATCH_LANES, ips.length - from),
+                nodes, outIds, from);
+        }
+    }
+
+    /**
+     * Batch version of {@link #get(int)}, see {@link #getAll(int[], int[])}.
+     *
+     * @param ips
+     *            IPv4 addresses to look up
+     * @param out
+     *            receives the location of every address, at the same index
+     * @throws IllegalArgumentException
+     *             if out is shorter than ips
+     */
+    public void getAll(int[] ips, IPLocation[] out) {
+        if (out.length < ips.length)
+            throw new IllegalArgumentException("out too short: " + out.length
+                + " < " + ips.length);
+
+        int[] nodes = new int[BATCH_LANES];
+        int[] ids = new int[BATCH_LANES];
+        for (int from = 0; from < ips.length; from += BATCH_LANES) {
+            int n = Math.min(BATCH_LANES, ips.length - from);
+            getGroup(ips, from, n, nodes, ids, 0);
+            for (int j = 0; j < n; j++) {
+                out[from + j] = dictionary.get(ids[j]);
+            }
+        }
+    }
+
+    /**
+     * Walks the n keys from ips[from] in lockstep, writing their ids from
+     * ids[idsFrom].
+     */
+    private void getGroup(int[] ips, int from, int n, int[] nodes, int[] ids,
+        int idsFrom) {
+        for (int j = 0; j < n; j++) {
+            nodes[j] = ROOT_PTR;
+            ids[idsFrom + j] = LocationDictionary.NO_VALUE_ID;
+        }
+
+        int live = n;
+        for (int bit = (int) MAX_IPV4_BIT; live > 0; bit >>>= 1) {
+            live = 0;
+            for (int j = 0; j < n; j++) {
+                int node = nodes[j];
+                if (node == NULL_PTR)
+                    continue;
+                int value = values[node];
+                if (value != LocationDictionary.NO_VALUE_ID)
+                    ids[idsFrom + j] = value;
+                node = ((ips[from + j] & bit) != 0) ? rights[node]
+                    : lefts[node];
+                nodes[j] = node;
+                if (node != NULL_PTR)
+                    live++;
+            }
+        }
+    }
+
+    /**
+     * @return tree of the IPv6 prefixes of the database, which also answers
+     *         IPv4 and IPv4-mapped addresses through this tree
+     */
+    public IPv6RadixTree getIPv6() {
+        return ipv6;
+    }
+
+    /**
+     * @return dictionary resolving the value ids of this tree
+     */
+    public LocationDictionary getDictionary() {
+        return dictionary;
+    }
+
+    // raw node access for the engines built from this tree
+
+    int leftOf(int node) {
+        return lefts[node];
+    }
+
+    int rightOf(int node) {
+        return rights[node];
+    }
+
+    int valueOf(int node) {
+        return values[node];
+    }
+
+    /**
+     * Shrinks the node arrays, those of the IPv6 tree and the dictionary to
+     * the nodes and values in use, giving back the capacity left by the
+     * doublings of the arrays while loading. Lookups may run
+     * concurrently, they see the same nodes in either array; puts grow the
+     * arrays again. The loaders call it once the tree is built.
+     */
+    public void trimToSize() {
+        if (allocatedSize != size) {
+            lefts = Arrays.copyOf(lefts, size);
+            rights = Arrays.copyOf(rights, size);
+            values = Arrays.copyOf(values, size);
+            allocatedSize = size;
+        }
+        ipv6.trimToSize();
+        dictionary.trimToSize();
+    }
+
+    /**
+     * Walks the tree to report its shape, and accounts for the bytes of its
+     * node arrays, of its IPv6 tree and of its dictionary.
+     *
+     * @return statistics of the tree at the time of the call
+     */
+    public TreeStats getStats() {
+        TreeStats.Builder stats = new TreeStats.Builder(size, allocatedSize);
+        // depth first, at most one pending sibling per level
+        int[] stack = new int[2 * (TreeStats.MAX_DEPTH + 2)];
+        int top = 0;
+        stack[top++] = ROOT_PTR;
+        stack[top++] = 0;
+        while (top > 0) {
+            int depth = stack[--top];
+            int node = stack[--top];
+            stats.node(depth, values[node] != LocationDictionary.NO_VALUE_ID);
+            if (rights[node] != NULL_PTR) {
+                stack[top++] = rights[node];
+                stack[top++] = depth + 1;
+            }
+            if (lefts[node] != NULL_PTR) {
+                stack[top++] = lefts[node];
+                stack[top++] = depth + 1;
+            }
+        }
+
+        stats.array("lefts", lefts.length, size, 4);
+        stats.array("rights", rights.length, size, 4);
+        stats.array("values", values.length, size, 4);
+        ipv6.addStats(stats);
+        dictionary.addStats(stats);
+        return stats.build();
     }
 
     /**
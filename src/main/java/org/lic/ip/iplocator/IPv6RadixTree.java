@@ -0,0 +1,400 @@
+package org.lic.ip.iplocator;
+
+import org.lic.ip.util.IPUtil;
+import org.lic.ip.util.TreeStats;
+
+import java.util.Arrays;
+
+/**
+ * IPv6 counterpart of {@link IPv4RadixIntTree}: a path-compressed binary
+ * radix tree (Patricia trie) over 128-bit keys, each held as two primitive
+ * longs, so that sparse allocations such as isolated /32 to /64 networks cost
+ * one node each instead of one per bit. Every node stores its full prefix and
+ * its length; a lookup checks the prefix of the nodes it goes through, and
+ * no BigInteger or InetAddress is ever created.
+ *
+ * The tree is owned by an {@link IPv4RadixIntTree} (see
+ * {@link IPv4RadixIntTree#getIPv6()}), shares its {@link LocationDictionary}
+ * and sends it the IPv4-mapped addresses (::ffff:a.b.c.d) and the plain
+ * dotted ones, so it answers lookups for both families. Those addresses
+ * fall back to the IPv6 prefixes shorter than /96 that cover them, e.g.
+ * ::/0, when the IPv4 tree has no value for them.
+ */
+public class IPv6RadixTree implements IpLocator {
+
+    private static final ThreadLocal<long[]> KEY = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[2];
+        }
+    };
+
+    private final IPv4RadixIntTree ipv4;
+
+    private long[] keysHi;
+
+    private long[] keysLo;
+
+    /** Prefix lengths, 0..128, read as unsigned bytes. */
+    private byte[] lens;
+
+    private int[] lefts;
+
+    private int[] rights;
+
+    private int[] values;
+
+    private int size;
+
+    IPv6RadixTree(IPv4RadixIntTree ipv4, int allocatedSize) {
+        this.ipv4 = ipv4;
+        init(Math.max(allocatedSize, 1));
+    }
+
+    /**
+     * Copies a tree, keeping its value ids, for the copy of its IPv4 tree.
+     */
+    IPv6RadixTree(IPv4RadixIntTree ipv4, IPv6RadixTree source) {
+        this.ipv4 = ipv4;
+        setNodes(source.keysHi, source.keysLo, source.lens, source.lefts,
+            source.rights, source.values, source.size);
+    }
+
+    private void init(int allocatedSize) {
+        keysHi = new long[allocatedSize];
+        keysLo = new long[allocatedSize];
+        lens = new byte[allocatedSize];
+        lefts = new int[allocatedSize];
+        rights = new int[allocatedSize];
+        values = new int[allocatedSize];
+
+        size = 1;
+        lefts[0] = IPv4RadixIntTree.NULL_PTR;
+        rights[0] = IPv4RadixIntTree.NULL_PTR;
+        values[0] = LocationDictionary.NO_VALUE_ID;
+    }
+
+    /**
+     * Replaces the nodes by copies of the given ones, e.g. read from an image.
+     */
+    void setNodes(long[] keysHi, long[] keysLo, byte[] lens, int[] lefts,
+        int[] rights, int[] values, int size) {
+        this.keysHi = Arrays.copyOf(keysHi, size);
+        this.keysLo = Arrays.copyOf(keysLo, size);
+        this.lens = Arrays.copyOf(lens, size);
+        this.lefts = Arrays.copyOf(lefts, size);
+        this.rights = Arrays.copyOf(rights, size);
+        this.values = Arrays.copyOf(values, size);
+        this.size = size;
+    }
+
+    /**
+     * @return true for the IPv4-mapped addresses, ::ffff:0:0/96
+     */
+    public static boolean isIPv4Mapped(long hi, long lo) {
+        return hi == 0 && (lo >>> 32) == 0xffffL;
+    }
+
+    /**
+     * Selects a value for a given address, traversing tree and choosing most
+     * specific value available for a given address.
+     *
+     * @param ipStr
+     *            IPv6 address, or IPv4 address in dotted form
+     * @return value at most specific network for a given address, or
+     *         {@link IPv4RadixIntTree#NO_VALUE} if ipStr is not a valid
+     *         address
+     */
+    public IPLocation get(String ipStr) {
+        if (ipStr == null)
+            return IPv4RadixIntTree.NO_VALUE;
+        if (ipStr.indexOf(':') < 0) {
+            long v4 = IPUtil.parseIPv4(ipStr);
+            if (v4 < 0)
+                return IPv4RadixIntTree.NO_VALUE;
+            return get(0, 0xffff00000000L | v4);
+        }
+
+        long[] key = KEY.get();
+        if (!IPUtil.parseIPv6(ipStr, key))
+            return IPv4RadixIntTree.NO_VALUE;
+        return get(key[0], key[1]);
+    }
+
+    @Override
+    public IPLocation getIPLocation(String ip) {
+        return get(ip);
+    }
+
+    /**
+     * @param hi
+     *            high 64 bits of the IPv6 address
+     * @param lo
+     *            low 64 bits of the IPv6 address
+     * @return value at most specific network for a given address
+     */
+    public IPLocation get(long hi, long lo) {
+        return ipv4.getDictionary().get(getId(hi, lo));
+    }
+
+    /**
+     * @return id in the dictionary of the value at most specific network for
+     *         a given address, IPv4-mapped addresses being looked up in the
+     *         IPv4 tree first: its prefixes are all /96 or longer, hence more
+     *         specific than the IPv6 ones that cover them
+     */
+    public int getId(long hi, long lo) {
+        if (isIPv4Mapped(hi, lo)) {
+            int id = ipv4.getId((int) lo);
+            if (id != LocationDictionary.NO_VALUE_ID)
+                return id;
+        }
+
+        int value = LocationDictionary.NO_VALUE_ID;
+        int node = IPv4RadixIntTree.ROOT_PTR;
+        while (node != IPv4RadixIntTree.NULL_PTR) {
+            int len = lens[node] & 0xff;
+            if (!matches(keysHi[node], keysLo[node], len, hi, lo))
+                break;
+            if (values[node] != LocationDictionary.NO_VALUE_ID)
+                value = values[node];
+            if (len == 128)
+                break;
+            node = bitAt(hi, lo, len) != 0 ? rights[node] : lefts[node];
+        }
+        return value;
+    }
+
+    /**
+     * Puts a key-value pair in a tree, using a string representation of IPv6
+     * prefix.
+     *
+     * @param ipNet
+     *            IPv6 network as a string in form of "2001:db8::/32"
+     * @param value
+     *            id of the value in the dictionary
+     * @throws IllegalArgumentException
+     *             if the network is not a valid IPv6 prefix
+     */
+    void put(String ipNet, int value) {
+        long[] key = new long[2];
+        int prefixlen = parseNetwork(ipNet, key);
+        put(key[0], key[1], prefixlen, value);
+    }
+
+    /**
+     * Clears the value stored under a prefix, the nodes stay. Like
+     * {@link #put(long, long, int, int)}, IPv4-mapped prefixes are cleared in
+     * the IPv4 tree.
+     *
+     * @return true if the prefix had a value
+     */
+    boolean remove(String ipNet) {
+        long[] key = new long[2];
+        int prefixlen = parseNetwork(ipNet, key);
+        if (prefixlen >= 96 && isIPv4Mapped(key[0], key[1]))
+            return ipv4.remove(key[1] & 0xffffffffL,
+                IPv4RadixIntTree.maskOf(prefixlen - 96));
+
+        long hi = key[0] & maskHi(prefixlen);
+        long lo = key[1] & maskLo(prefixlen);
+
+        int node = IPv4RadixIntTree.ROOT_PTR;
+        while (node != IPv4RadixIntTree.NULL_PTR) {
+            int len = lens[node] & 0xff;
+            if (len > prefixlen || !matches(keysHi[node], keysLo[node], len, hi, lo))
+                return false;
+            if (len == prefixlen) {
+                boolean removed = values[node] != LocationDictionary.NO_VALUE_ID;
+                values[node] = LocationDictionary.NO_VALUE_ID;
+                return removed;
+            }
+            node = bitAt(hi, lo, len) != 0 ? rights[node] : lefts[node];
+        }
+        return false;
+    }
+
+    private static int parseNetwork(String ipNet, long[] key) {
+        int pos = ipNet.indexOf('/');
+        if (pos < 0 || !IPUtil.parseIPv6(ipNet, 0, pos, key))
+            throw new IllegalArgumentException("invalid ip network: " + ipNet);
+        int prefixlen;
+        try {
+            prefixlen = Integer.parseInt(ipNet.substring(pos + 1));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("invalid ip network: " + ipNet);
+        }
+        if (prefixlen < 0 || prefixlen > 128)
+            throw new IllegalArgumentException("invalid ip network: " + ipNet);
+        return prefixlen;
+    }
+
+    /**
+     * Puts a key-value pair in a tree, splitting a compressed edge when the
+     * prefix diverges from it or ends in its middle. IPv4-mapped prefixes go
+     * to the IPv4 tree, where they are looked up.
+     *
+     * @param hi
+     *            high 64 bits of the network
+     * @param lo
+     *            low 64 bits of the network
+     * @param prefixlen
+     *            prefix length, 0..128
+     * @param value
+     *            id of the value in the dictionary
+     */
+    void put(long hi, long lo, int prefixlen, int value) {
+        if (prefixlen >= 96 && isIPv4Mapped(hi, lo)) {
+            ipv4.put(lo & 0xffffffffL, IPv4RadixIntTree.maskOf(prefixlen - 96),
+                value);
+            return;
+        }
+
+        hi &= maskHi(prefixlen);
+        lo &= maskLo(prefixlen);
+
+        // node always covers the key, and is not longer than it
+        int node = IPv4RadixIntTree.ROOT_PTR;
+        while (true) {
+            int len = lens[node] & 0xff;
+            if (len == prefixlen) {
+                values[node] = value;
+                return;
+            }
+
+            boolean right = bitAt(hi, lo, len) != 0;
+            int child = right ? rights[node] : lefts[node];
+            if (child == IPv4RadixIntTree.NULL_PTR) {
+                link(node, right, newNode(hi, lo, prefixlen, value));
+                return;
+            }
+
+            int childLen = lens[child] & 0xff;
+            int common = commonPrefix(keysHi[child], keysLo[child], hi, lo,
+                Math.min(childLen, prefixlen));
+            if (common == childLen) {
+                node = child;
+                continue;
+            }
+
+            // the key leaves the edge to child, or stops on it
+            int mid = newNode(hi & maskHi(common), lo & maskLo(common), common,
+                LocationDictionary.NO_VALUE_ID);
+            link(node, right, mid);
+            link(mid, bitAt(keysHi[child], keysLo[child], common) != 0, child);
+            if (common == prefixlen)
+                values[mid] = value;
+            else
+                link(mid, bitAt(hi, lo, common) != 0, newNode(hi, lo,
+                    prefixlen, value));
+            return;
+        }
+    }
+
+    private void link(int parent, boolean right, int child) {
+        if (right)
+            rights[parent] = child;
+        else
+            lefts[parent] = child;
+    }
+
+    private int newNode(long hi, long lo, int len, int value) {
+        if (size == lefts.length) {
+            int allocatedSize = size * 2;
+            keysHi = Arrays.copyOf(keysHi, allocatedSize);
+            keysLo = Arrays.copyOf(keysLo, allocatedSize);
+            lens = Arrays.copyOf(lens, allocatedSize);
+            lefts = Arrays.copyOf(lefts, allocatedSize);
+            rights = Arrays.copyOf(rights, allocatedSize);
+            values = Arrays.copyOf(values, allocatedSize);
+        }
+        keysHi[size] = hi;
+        keysLo[size] = lo;
+        lens[size] = (byte) len;
+        lefts[size] = IPv4RadixIntTree.NULL_PTR;
+        rights[size] = IPv4RadixIntTree.NULL_PTR;
+        values[size] = value;
+        return size++;
+    }
+
+    private static long maskHi(int len) {
+        return len >= 64 ? -1L : len == 0 ? 0L : -1L << (64 - len);
+    }
+
+    private static long maskLo(int len) {
+        return len <= 64 ? 0L : len == 128 ? -1L : -1L << (128 - len);
+    }
+
+    private static boolean matches(long keyHi, long keyLo, int len, long hi,
+        long lo) {
+        return ((keyHi ^ hi) & maskHi(len)) == 0
+            && ((keyLo ^ lo) & maskLo(len)) == 0;
+    }
+
+    private static int bitAt(long hi, long lo, int i) {
+        return (int) (i < 64 ? hi >>> (63 - i) : lo >>> (127 - i)) & 1;
+    }
+
+    private static int commonPrefix(long aHi, long aLo, long bHi, long bLo,
+        int max) {
+        long x = aHi ^ bHi;
+        int common = x != 0 ? Long.numberOfLeadingZeros(x)
+            : 64 + Long.numberOfLeadingZeros(aLo ^ bLo);
+        return Math.min(common, max);
+    }
+
+    /**
+     * Shrinks the node arrays to the nodes in use.
+     */
+    void trimToSize() {
+        if (lefts.length != size)
+            setNodes(keysHi, keysLo, lens, lefts, rights, values, size);
+    }
+
+    /**
+     * Adds the node arrays to the statistics of the IPv4 tree; the IPv6
+     * nodes are not in its depth histogram.
+     */
+    void addStats(TreeStats.Builder stats) {
+        int length = lefts.length;
+        stats.array("ipv6.keysHi", length, size, 8);
+        stats.array("ipv6.keysLo", length, size, 8);
+        stats.array("ipv6.lens", length, size, 1);
+        stats.array("ipv6.lefts", length, size, 4);
+        stats.array("ipv6.rights", length, size, 4);
+        stats.array("ipv6.values", length, size, 4);
+    }
+
+    /**
+     * @return number of nodes, the root included
+     */
+    public int size() {
+        return size;
+    }
+
+    // raw node access for the database image
+
+    long keyHiOf(int node) {
+        return keysHi[node];
+    }
+
+    long keyLoOf(int node) {
+        return keysLo[node];
+    }
+
+    int lenOf(int node) {
+        return lens[node] & 0xff;
+    }
+
+    int leftOf(int node) {
+        return lefts[node];
+    }
+
+    int rightOf(int node) {
+        return rights[node];
+    }
+
+    int valueOf(int node) {
+        return values[node];
+    }
+}
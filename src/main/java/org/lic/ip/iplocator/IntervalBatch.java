@@ -0,0 +1,23 @@
+package org.lic.ip.iplocator;
+
+/**
+ * Batch search of an {@link IntervalTable}. This is the portable version, a
+ * plain loop; the jar carries a Java 17 version of this class under
+ * META-INF/versions/17 (src/main/java17) that uses the Vector API when the
+ * jdk.incubator.vector module is present.
+ */
+final class IntervalBatch {
+
+    private IntervalBatch() {
+    }
+
+    static boolean isVectorized() {
+        return false;
+    }
+
+    static void getAll(int[] ends, short[] ids, int n, int[] ips, int[] outIds) {
+        for (int i = 0; i < ips.length; i++) {
+            outIds[i] = IntervalTable.search(ends, ids, n, ips[i]);
+        }
+    }
+}
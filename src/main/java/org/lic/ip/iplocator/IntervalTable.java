@@ -0,0 +1,253 @@
+package org.lic.ip.iplocator;
+
+import org.lic.ip.util.IPUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+
+/**
+ * The prefixes of a loaded {@link IPv4RadixIntTree} flattened into the
+ * disjoint ranges they cover: a primitive array of range ends plus a parallel
+ * array of value numbers, about 6 bytes per range. Values are the distinct
+ * {@link IPLocation}s, not the dictionary ids, which also tell cities apart,
+ * so neighbouring ranges of the same IPLocation are merged;
+ * {@link #getId(int)} answers the first id of the location, see
+ * {@link LocationDictionary#locationId(int)}. Both arrays are kept in
+ * Eytzinger (BFS) order, so the top levels of the branch-light binary search
+ * share a few cache lines.
+ *
+ * Ends are stored biased (xor 0x80000000) to compare unsigned addresses as
+ * signed ints. Up to 65535 distinct values are supported.
+ */
+public class IntervalTable implements IPv4Engine {
+    private static final Logger logger = LoggerFactory
+        .getLogger(IntervalTable.class);
+
+    private static final int BIAS = 0x80000000;
+
+    private static final int MAX_ID = 0xffff;
+
+    /**
+     * Range ends (inclusive) at 1..n, in Eytzinger order; the last range
+     * always ends at 255.255.255.255.
+     */
+    private int[] ends;
+
+    private short[] ids;
+
+    private int n;
+
+    private final IPLocation[] values;
+
+    /** first dictionary id of each value */
+    private final int[] valueIds;
+
+    // sorted range starts and value numbers, only while building
+    private long[] starts;
+
+    private int lastNumber = -1;
+
+    private int sorted;
+
+    private IntervalTable(IPv4RadixIntTree tree) {
+        LocationDictionary dictionary = tree.getDictionary();
+        int[] numbers = dictionary.locationNumbers();
+        valueIds = dictionary.firstIds(numbers);
+        if (valueIds.length - 1 > MAX_ID)
+            throw new IllegalStateException("too many distinct values: "
+                + valueIds.length);
+        values = new IPLocation[valueIds.length];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = dictionary.get(valueIds[i]);
+        }
+
+        starts = new long[1024];
+        ids = new short[1024];
+        flatten(tree, numbers, IPv4RadixIntTree.ROOT_PTR, 0, 0L,
+            LocationDictionary.NO_VALUE_ID);
+
+        n = sorted;
+        int[] sortedEnds = new int[n];
+        for (int i = 0; i < n - 1; i++) {
+            sortedEnds[i] = (int) (starts[i + 1] - 1) ^ BIAS;
+        }
+        sortedEnds[n - 1] = 0xffffffff ^ BIAS;
+        short[] sortedIds = ids;
+        starts = null;
+
+        ends = new int[n + 1];
+        ids = new short[n + 1];
+        eytzinger(sortedEnds, sortedIds, 0, 1);
+    }
+
+    /**
+     * Flattens a given tree into an interval table.
+     *
+     * @param tree
+     *            fully loaded binary radix tree
+     * @return a table answering the same lookups as tree
+     * @throws IllegalStateException
+     *             if the tree has more than 65535 distinct IPLocations, i.e.
+     *             (country, area) pairs whatever the number of lines
+     */
+    public static IntervalTable build(IPv4RadixIntTree tree) {
+        long start = System.currentTimeMillis();
+        IntervalTable table = new IntervalTable(tree);
+        logger.info("build ok, ranges: {} ({} bytes), values: {}, cost: {}ms",
+            new Object[] { table.n, table.memoryBytes(), table.values.length,
+                System.currentTimeMillis() - start });
+        return table;
+    }
+
+    /**
+     * @return number of disjoint ranges
+     */
+    public int size() {
+        return n;
+    }
+
+    /**
+     * @return bytes held by the ends and ids arrays
+     */
+    public long memoryBytes() {
+        return (n + 1) * 6L;
+    }
+
+    /**
+     * Emits the ranges covered by a binary node in address order, the parts
+     * without a more specific child taking the node's (or the inherited)
+     * value number.
+     */
+    private void flatten(IPv4RadixIntTree tree, int[] numbers, int node,
+        int depth, long start, int inherited) {
+        int value = tree.valueOf(node);
+        int number = value != LocationDictionary.NO_VALUE_ID ? numbers[value]
+            : inherited;
+        if (depth == 32) {
+            emit(start, number);
+            return;
+        }
+
+        long half = 1L << (31 - depth);
+        int left = tree.leftOf(node);
+        int right = tree.rightOf(node);
+        if (left != IPv4RadixIntTree.NULL_PTR)
+            flatten(tree, numbers, left, depth + 1, start, number);
+        else
+            emit(start, number);
+        if (right != IPv4RadixIntTree.NULL_PTR)
+            flatten(tree, numbers, right, depth + 1, start + half, number);
+        else
+            emit(start + half, number);
+    }
+
+    private void emit(long start, int number) {
+        if (number == lastNumber)
+            return;
+        if (sorted == starts.length) {
+            starts = Arrays.copyOf(starts, sorted * 2);
+            ids = Arrays.copyOf(ids, sorted * 2);
+        }
+        starts[sorted] = start;
+        ids[sorted] = (short) number;
+        sorted++;
+        lastNumber = number;
+    }
+
+    /**
+     * Lays the sorted arrays out in Eytzinger order: an in-order walk of the
+     * implicit tree rooted at k (children at 2k and 2k + 1).
+     *
+     * @return index of the next sorted element to place
+     */
+    private int eytzinger(int[] sortedEnds, short[] sortedIds, int i, int k) {
+        if (k <= n) {
+            i = eytzinger(sortedEnds, sortedIds, i, k << 1);
+            ends[k] = sortedEnds[i];
+            ids[k] = sortedIds[i];
+            i++;
+            i = eytzinger(sortedEnds, sortedIds, i, (k << 1) | 1);
+        }
+        return i;
+    }
+
+    @Override
+    public IPLocation get(String ipStr) {
+        long key = IPUtil.parseIPv4(ipStr);
+        if (key < 0)
+            return IPv4RadixIntTree.NO_VALUE;
+        return get((int) key);
+    }
+
+    @Override
+    public IPLocation getIPLocation(String ip) {
+        return get(ip);
+    }
+
+    @Override
+    public IPLocation get(long key) {
+        return get((int) key);
+    }
+
+    @Override
+    public IPLocation get(int key) {
+        return values[search(ends, ids, n, key)];
+    }
+
+    /**
+     * @return the first dictionary id of the location, see
+     *         {@link LocationDictionary#locationId(int)}
+     */
+    @Override
+    public int getId(int key) {
+        return valueIds[search(ends, ids, n, key)];
+    }
+
+    /**
+     * Finds the first range whose end is not below key: descends the Eytzinger
+     * tree without branching on the comparison, then backs up past the
+     * trailing right turns (the 1 bits of k).
+     *
+     * @return value number of the range
+     */
+    static int search(int[] ends, short[] ids, int n, int key) {
+        int x = key ^ BIAS;
+        int k = 1;
+        while (k <= n) {
+            k = (k << 1) + (ends[k] < x ? 1 : 0);
+        }
+        k >>>= Integer.numberOfTrailingZeros(~k) + 1;
+        return ids[k] & 0xffff;
+    }
+
+    /**
+     * Looks up many addresses at once. On a Java 17+ runtime with the
+     * jdk.incubator.vector module added, the descents of a group of keys run
+     * as SIMD gathers and compares (see {@link #isBatchVectorized()}),
+     * otherwise this is a loop over {@link #getId(int)}.
+     *
+     * @param ips
+     *            IPv4 addresses to look up, as in {@link #getId(int)}
+     * @param outIds
+     *            receives the id of every address, at the same index
+     * @throws IllegalArgumentException
+     *             if outIds is shorter than ips
+     */
+    public void getAll(int[] ips, int[] outIds) {
+        if (outIds.length < ips.length)
+            throw new IllegalArgumentException("outIds too short: "
+                + outIds.length + " < " + ips.length);
+        IntervalBatch.getAll(ends, ids, n, ips, outIds);
+        for (int i = 0; i < ips.length; i++) {
+            outIds[i] = valueIds[outIds[i]];
+        }
+    }
+
+    /**
+     * @return true if {@link #getAll} uses the Vector API on this runtime
+     */
+    public static boolean isBatchVectorized() {
+        return IntervalBatch.isVectorized();
+    }
+}
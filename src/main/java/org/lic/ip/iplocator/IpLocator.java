@@ -0,0 +1,19 @@
+package org.lic.ip.iplocator;
+
+/**
+ * Lookup contract shared by every engine answering "where is this address",
+ * the in-memory trees of this package as well as the qqwry based
+ * {@link org.lic.ip.ipseeker.IPSeeker}, so that callers and
+ * {@link TieredIpLocator} do not depend on one of them.
+ */
+public interface IpLocator {
+
+    /**
+     * @param ip
+     *            address to look up, in string form
+     * @return location of the address, never null; an unknown address
+     *         answers a location for which {@link IPLocation#isUnknown()}
+     *         is true
+     */
+    IPLocation getIPLocation(String ip);
+}
@@ -0,0 +1,403 @@
+package org.lic.ip.iplocator;
+
+import org.lic.ip.util.TreeStats;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Value dictionary of an ip database: every distinct location is interned
+ * once, and trees and engines store its primitive int id per prefix instead of
+ * an object reference. Id 0 ({@link #NO_VALUE_ID}) always stands for
+ * {@link IPv4RadixIntTree#NO_VALUE}.
+ *
+ * A location is the full attribute tuple of a line (country, province, city,
+ * isp). The attributes are stored column-wise: one int array per
+ * {@link Attribute}, indexed by id, holding the index of the value in a pool
+ * of distinct strings, so that any subset of them is read without an object
+ * per location. The two-field view used by the lookups, {@link IPLocation},
+ * is derived from the tuple and shared by all the ids that map to it.
+ *
+ * Everything lives in arrays, the lookup tables used while interning being
+ * open-addressing int tables, so that {@link #addStats} accounts for every
+ * byte.
+ *
+ * Interning is not thread-safe, it happens while loading; lookups by id are
+ * safe once the dictionary is published with its tree.
+ */
+public class LocationDictionary {
+
+    public static final int NO_VALUE_ID = 0;
+
+    /**
+     * Attributes of a location, in the order of the ipdb_all_* lines.
+     */
+    public enum Attribute {
+        COUNTRY, PROVINCE, CITY, ISP
+    }
+
+    private static final int ATTRIBUTES = Attribute.values().length;
+
+    private static final String CHINA = "中国";
+
+    /** Pool index of null, the attributes of NO_VALUE_ID and unknown ones. */
+    private static final int NULL_STRING = 0;
+
+    /**
+     * Open-addressing hash table of the ids, keyed by their columns, 0 for
+     * empty slots.
+     */
+    private int[] table = new int[2048];
+
+    /** Open-addressing hash table of the pool indexes, keyed by string. */
+    private int[] stringTable = new int[512];
+
+    /**
+     * Open-addressing hash table of the first id of each distinct
+     * {@link IPLocation}, keyed by its country and area.
+     */
+    private int[] locationTable = new int[2048];
+
+    private String[] strings = new String[256];
+
+    private int stringCount;
+
+    /** Pool indexes of the attributes, one column per attribute. */
+    private final int[][] columns = new int[ATTRIBUTES][1024];
+
+    private IPLocation[] locations = new IPLocation[1024];
+
+    private int size;
+
+    public LocationDictionary() {
+        strings[NULL_STRING] = null;
+        stringCount = 1;
+        locations[NO_VALUE_ID] = IPv4RadixIntTree.NO_VALUE;
+        size = 1;
+    }
+
+    /**
+     * Returns the id of a location known only by its two lookup fields, e.g.
+     * read from an older image; its province and city are null.
+     *
+     * @param country
+     *            country, or province for chinese networks
+     * @param area
+     *            isp name
+     * @return id of the location
+     */
+    public int intern(String country, String area) {
+        return intern(country, null, null, area);
+    }
+
+    /**
+     * Returns the id of a location, adding it on first sight.
+     *
+     * @param country
+     *            country name
+     * @param province
+     *            province, looked up as the country of chinese networks
+     * @param city
+     *            city name
+     * @param isp
+     *            isp name, looked up as the area
+     * @return id of the location
+     */
+    public int intern(String country, String province, String city, String isp) {
+        return intern(stringId(country), stringId(province), stringId(city),
+            stringId(isp));
+    }
+
+    /**
+     * Returns the id of a location given by the pool indexes of its
+     * attributes, as returned by {@link #stringId}.
+     */
+    int intern(int country, int province, int city, int isp) {
+        int mask = table.length - 1;
+        int slot = hash(country, province, city, isp) & mask;
+        int id;
+        while ((id = table[slot]) != NO_VALUE_ID) {
+            if (columns[0][id] == country && columns[1][id] == province
+                && columns[2][id] == city && columns[3][id] == isp)
+                return id;
+            slot = (slot + 1) & mask;
+        }
+
+        if (size == locations.length) {
+            locations = Arrays.copyOf(locations, size * 2);
+            for (int a = 0; a < ATTRIBUTES; a++) {
+                columns[a] = Arrays.copyOf(columns[a], size * 2);
+            }
+        }
+        columns[0][size] = country;
+        columns[1][size] = province;
+        columns[2][size] = city;
+        columns[3][size] = isp;
+        locations[size] = shareLocation(size);
+        table[slot] = size;
+        if (2 * size > table.length)
+            rehash();
+        return size++;
+    }
+
+    private static int hash(int country, int province, int city, int isp) {
+        return mix(((country * 31 + province) * 31 + city) * 31 + isp);
+    }
+
+    private static int mix(int h) {
+        h *= 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Doubles the table, ids 1..size included.
+     */
+    private void rehash() {
+        table = new int[table.length * 2];
+        int mask = table.length - 1;
+        for (int id = 1; id <= size; id++) {
+            int slot = hash(columns[0][id], columns[1][id], columns[2][id],
+                columns[3][id]) & mask;
+            while (table[slot] != NO_VALUE_ID)
+                slot = (slot + 1) & mask;
+            table[slot] = id;
+        }
+    }
+
+    /**
+     * Returns the id of a location of another dictionary, with all its
+     * attributes.
+     */
+    int intern(LocationDictionary source, int id) {
+        if (id == NO_VALUE_ID)
+            return NO_VALUE_ID;
+        return intern(source.get(id, Attribute.COUNTRY),
+            source.get(id, Attribute.PROVINCE), source.get(id, Attribute.CITY),
+            source.get(id, Attribute.ISP));
+    }
+
+    /**
+     * @return index of a string in the pool, adding it on first sight
+     */
+    int stringId(String s) {
+        if (s == null)
+            return NULL_STRING;
+        int mask = stringTable.length - 1;
+        int slot = mix(s.hashCode()) & mask;
+        int id;
+        while ((id = stringTable[slot]) != NULL_STRING) {
+            if (strings[id].equals(s))
+                return id;
+            slot = (slot + 1) & mask;
+        }
+
+        if (stringCount == strings.length)
+            strings = Arrays.copyOf(strings, stringCount * 2);
+        id = stringCount++;
+        strings[id] = new String(s); // 不引用整行的char[]
+        stringTable[slot] = id;
+        if (2 * stringCount > stringTable.length) {
+            stringTable = new int[stringTable.length * 2];
+            mask = stringTable.length - 1;
+            for (int i = 1; i < stringCount; i++) {
+                slot = mix(strings[i].hashCode()) & mask;
+                while (stringTable[slot] != NULL_STRING)
+                    slot = (slot + 1) & mask;
+                stringTable[slot] = i;
+            }
+        }
+        return id;
+    }
+
+    /**
+     * @return pool index of the country looked up for a location: the
+     *         province of chinese networks
+     */
+    private int locationCountry(int id) {
+        int country = columns[0][id];
+        int province = columns[1][id];
+        // 如果是国内ip，country字段放省名
+        return CHINA.equals(strings[country]) && province != NULL_STRING
+            ? province : country;
+    }
+
+    /**
+     * @return the location of the id whose columns were just set, shared
+     *         with the previous ids of the same country and area
+     */
+    private IPLocation shareLocation(int id) {
+        String country = strings[locationCountry(id)];
+        String area = strings[columns[3][id]];
+        int mask = locationTable.length - 1;
+        int slot = locationSlot(id, mask);
+        int other;
+        while ((other = locationTable[slot]) != NO_VALUE_ID) {
+            // pooled strings, compared by reference
+            if (locations[other].country == country
+                && locations[other].area == area)
+                return locations[other];
+            slot = (slot + 1) & mask;
+        }
+
+        locationTable[slot] = id;
+        IPLocation location = new IPLocation(country, area);
+        locations[id] = location;
+        if (2 * id > locationTable.length) {
+            locationTable = new int[locationTable.length * 2];
+            mask = locationTable.length - 1;
+            for (int i = 1; i <= id; i++) {
+                slot = locationSlot(i, mask);
+                while ((other = locationTable[slot]) != NO_VALUE_ID
+                    && locations[other] != locations[i])
+                    slot = (slot + 1) & mask;
+                // only the first id of each location
+                if (other == NO_VALUE_ID)
+                    locationTable[slot] = i;
+            }
+        }
+        return location;
+    }
+
+    private int locationSlot(int id, int mask) {
+        return mix(locationCountry(id) * 31 + columns[3][id]) & mask;
+    }
+
+    /**
+     * @param id
+     *            location id, as returned by {@link #intern}
+     * @return the shared location of that id
+     */
+    public IPLocation get(int id) {
+        return locations[id];
+    }
+
+    /**
+     * @param id
+     *            location id, as returned by {@link #intern}
+     * @return the first id of the same {@link IPLocation}: ids that differ
+     *         only in the attributes the lookups do not return, e.g. the
+     *         city, share it
+     */
+    public int locationId(int id) {
+        if (id == NO_VALUE_ID)
+            return NO_VALUE_ID;
+        int mask = locationTable.length - 1;
+        int slot = locationSlot(id, mask);
+        int other;
+        while (locations[other = locationTable[slot]] != locations[id])
+            slot = (slot + 1) & mask;
+        return other;
+    }
+
+    /**
+     * Numbers the distinct {@link IPLocation}s in the order of their first
+     * id, NO_VALUE being 0, for the engines that answer only IPLocations and
+     * store few bits per entry.
+     *
+     * @return the number of the location of each id
+     * @see #firstIds(int[])
+     */
+    int[] locationNumbers() {
+        int[] numbers = new int[size];
+        int count = 1;
+        for (int id = 1; id < size; id++) {
+            int first = locationId(id);
+            numbers[id] = first == id ? count++ : numbers[first];
+        }
+        return numbers;
+    }
+
+    /**
+     * @param numbers
+     *            as returned by {@link #locationNumbers()}
+     * @return the first id of each location number
+     */
+    int[] firstIds(int[] numbers) {
+        int count = 1;
+        for (int id = 1; id < size; id++) {
+            count = Math.max(count, numbers[id] + 1);
+        }
+        int[] firstIds = new int[count];
+        for (int id = size - 1; id > 0; id--) {
+            firstIds[numbers[id]] = id;
+        }
+        return firstIds;
+    }
+
+    /**
+     * @param id
+     *            location id, as returned by {@link #intern}
+     * @param attribute
+     *            attribute to read
+     * @return value of the attribute, null for {@link #NO_VALUE_ID} and for
+     *         the attributes a location was interned without
+     */
+    public String get(int id, Attribute attribute) {
+        return strings[columns[attribute.ordinal()][id]];
+    }
+
+    /**
+     * @return number of ids, NO_VALUE_ID included
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return number of distinct attribute values
+     */
+    public int stringCount() {
+        return stringCount - 1;
+    }
+
+    /**
+     * @return locations indexed by id, for engines that resolve ids in their
+     *         own array
+     */
+    public IPLocation[] toArray() {
+        return Arrays.copyOf(locations, size);
+    }
+
+    /**
+     * Shrinks the columns, the locations and the string pool to their size;
+     * interning more locations grows them again.
+     */
+    void trimToSize() {
+        locations = Arrays.copyOf(locations, size);
+        for (int a = 0; a < ATTRIBUTES; a++) {
+            columns[a] = Arrays.copyOf(columns[a], size);
+        }
+        strings = Arrays.copyOf(strings, stringCount);
+    }
+
+    /**
+     * Adds the arrays of the dictionary, and the strings and locations they
+     * hold, to the statistics of its tree.
+     */
+    void addStats(TreeStats.Builder stats) {
+        for (Attribute attribute: Attribute.values()) {
+            stats.dictionaryArray(attribute.name().toLowerCase(Locale.ENGLISH),
+                columns[attribute.ordinal()].length, size, 4);
+        }
+        stats.dictionaryArray("locations", locations.length, size,
+            TreeStats.REFERENCE_BYTES);
+        stats.dictionaryArray("strings", strings.length, stringCount,
+            TreeStats.REFERENCE_BYTES);
+        // hash tables are kept half empty on purpose, not counted as slack
+        stats.dictionaryArray("table", table.length, table.length, 4);
+        stats.dictionaryArray("stringTable", stringTable.length,
+            stringTable.length, 4);
+        stats.dictionaryArray("locationTable", locationTable.length,
+            locationTable.length, 4);
+
+        long bytes = TreeStats.arrayBytes(ATTRIBUTES, TreeStats.REFERENCE_BYTES);
+        for (int i = 1; i < stringCount; i++) {
+            bytes += TreeStats.stringBytes(strings[i]);
+        }
+        for (int slot: locationTable) {
+            if (slot != NO_VALUE_ID)
+                bytes += TreeStats.objectBytes(2 * TreeStats.REFERENCE_BYTES);
+        }
+        stats.dictionaryObjects(bytes);
+    }
+}
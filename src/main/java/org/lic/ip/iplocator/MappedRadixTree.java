@@ -0,0 +1,105 @@
+package org.lic.ip.iplocator;
+
+import org.lic.ip.util.IPUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Read-only radix tree walking the node arrays of an image compiled by
+ * {@link IPDatabaseCompiler} in place, through absolute reads on a memory
+ * mapped file. The nodes are never copied to the java heap, so all the JVMs
+ * of a host share one copy of them in the page cache; only the small value
+ * dictionary is decoded on heap.
+ *
+ * Absolute reads do not touch the buffer position, so one instance can be
+ * shared by any number of threads. Only the IPv4 nodes are served, the IPv6
+ * section of the image is left to {@link IPv6RadixTree}.
+ */
+public class MappedRadixTree implements IPv4Engine {
+    private static final Logger logger = LoggerFactory
+        .getLogger(MappedRadixTree.class);
+
+    private final ByteBuffer bb;
+
+    private final int leftsOffset;
+
+    private final int rightsOffset;
+
+    private final int valuesOffset;
+
+    private final IPLocation[] values;
+
+    private MappedRadixTree(ByteBuffer bb) throws IOException {
+        this.bb = bb;
+        int nodes = bb.getInt(8);
+        leftsOffset = DatabaseImage.HEADER_SIZE;
+        rightsOffset = leftsOffset + 4 * nodes;
+        valuesOffset = rightsOffset + 4 * nodes;
+
+        LocationDictionary dictionary = new LocationDictionary();
+        DatabaseImage.readDictionary(bb, dictionary);
+        values = dictionary.toArray();
+    }
+
+    /**
+     * Maps an image file.
+     *
+     * @param imagePath
+     *            image compiled by {@link IPDatabaseCompiler}
+     * @return a tree reading the mapped image
+     * @throws IOException
+     *             if the file is not a valid image
+     */
+    public static MappedRadixTree open(String imagePath) throws IOException {
+        long start = System.currentTimeMillis();
+        MappedRadixTree tree = new MappedRadixTree(DatabaseImage.map(imagePath));
+        logger.info("map ok, {}: {} bytes off heap, locations: {}, cost: {}ms",
+            new Object[] { imagePath, tree.bb.capacity(), tree.values.length,
+                System.currentTimeMillis() - start });
+        return tree;
+    }
+
+    @Override
+    public IPLocation get(String ipStr) {
+        long key = IPUtil.parseIPv4(ipStr);
+        if (key < 0)
+            return IPv4RadixIntTree.NO_VALUE;
+        return get((int) key);
+    }
+
+    @Override
+    public IPLocation getIPLocation(String ip) {
+        return get(ip);
+    }
+
+    @Override
+    public IPLocation get(long key) {
+        return get((int) key);
+    }
+
+    @Override
+    public IPLocation get(int key) {
+        return values[getId(key)];
+    }
+
+    @Override
+    public int getId(int key) {
+        int bit = 0x80000000;
+        int value = LocationDictionary.NO_VALUE_ID;
+        int node = IPv4RadixIntTree.ROOT_PTR;
+
+        while (node != IPv4RadixIntTree.NULL_PTR) {
+            int v = bb.getInt(valuesOffset + (node << 2));
+            if (v != LocationDictionary.NO_VALUE_ID)
+                value = v;
+            node = bb.getInt(((key & bit) != 0 ? rightsOffset : leftsOffset)
+                + (node << 2));
+            bit >>>= 1;
+        }
+
+        return value;
+    }
+}
@@ -0,0 +1,151 @@
+package org.lic.ip.iplocator;
+
+import org.lic.ip.util.IPUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+
+/**
+ * Fixed-stride (16-8-8) multibit trie built from a loaded
+ * {@link IPv4RadixIntTree}. Values are leaf-pushed while building, so every
+ * table entry holds either a value id or a pointer to the next level table,
+ * and a lookup takes at most three array reads instead of walking up to 32
+ * binary nodes.
+ */
+public class MultibitTrie implements IPv4Engine {
+    private static final Logger logger = LoggerFactory
+        .getLogger(MultibitTrie.class);
+
+    private static final int ROOT_BITS = 16;
+
+    private static final int STRIDE_BITS = 8;
+
+    private static final int STRIDE_SIZE = 1 << STRIDE_BITS;
+
+    /**
+     * All the tables back to back: the 2^16 entries root table first, then the
+     * 256 entries tables of the lower levels. An entry >= 0 is a value id, an
+     * entry < 0 is the complement (~) of the offset of a next level table.
+     */
+    private int[] tables;
+
+    private int tablesSize;
+
+    private final IPLocation[] values;
+
+    private MultibitTrie(IPv4RadixIntTree tree) {
+        values = tree.getDictionary().toArray();
+
+        tables = new int[(1 << ROOT_BITS) + 64 * STRIDE_SIZE];
+        tablesSize = 1 << ROOT_BITS;
+        expand(tree, IPv4RadixIntTree.ROOT_PTR, 0, 0, 0, ROOT_BITS,
+            LocationDictionary.NO_VALUE_ID);
+
+        tables = Arrays.copyOf(tables, tablesSize);
+    }
+
+    /**
+     * Builds a multibit trie holding the same prefixes as a given tree.
+     *
+     * @param tree
+     *            fully loaded binary radix tree
+     * @return a multibit trie answering the same lookups as tree
+     */
+    public static MultibitTrie build(IPv4RadixIntTree tree) {
+        long start = System.currentTimeMillis();
+        MultibitTrie trie = new MultibitTrie(tree);
+        logger.info("build ok, tables: {} entries ({} bytes), values: {}, cost: {}ms",
+            new Object[] { trie.tablesSize, trie.tablesSize * 4L,
+                trie.values.length, System.currentTimeMillis() - start });
+        return trie;
+    }
+
+    /**
+     * Pushes the value of a binary node (or the inherited one) down to the
+     * table entries it covers.
+     *
+     * @param node
+     *            binary tree node at depth
+     * @param index
+     *            bits of the node's path below the current level, i.e. the
+     *            node covers entries [index << (levelEnd - depth), (index + 1)
+     *            << (levelEnd - depth)) of the table at base
+     * @param levelEnd
+     *            depth at which the current level table ends
+     * @param inherited
+     *            value id of the most specific ancestor having a value
+     */
+    private void expand(IPv4RadixIntTree tree, int node, int depth, int index,
+        int base, int levelEnd, int inherited) {
+        int value = tree.valueOf(node);
+        int id = value != LocationDictionary.NO_VALUE_ID ? value : inherited;
+        int left = tree.leftOf(node);
+        int right = tree.rightOf(node);
+
+        if (depth == levelEnd) {
+            if (left == IPv4RadixIntTree.NULL_PTR
+                && right == IPv4RadixIntTree.NULL_PTR) {
+                tables[base + index] = id;
+                return;
+            }
+            int child = allocateTable(id);
+            tables[base + index] = ~child;
+            base = child;
+            index = 0;
+            levelEnd += STRIDE_BITS;
+        } else {
+            int span = levelEnd - depth;
+            Arrays.fill(tables, base + (index << span), base
+                + ((index + 1) << span), id);
+        }
+
+        if (left != IPv4RadixIntTree.NULL_PTR)
+            expand(tree, left, depth + 1, index << 1, base, levelEnd, id);
+        if (right != IPv4RadixIntTree.NULL_PTR)
+            expand(tree, right, depth + 1, (index << 1) | 1, base, levelEnd, id);
+    }
+
+    private int allocateTable(int id) {
+        if (tablesSize + STRIDE_SIZE > tables.length)
+            tables = Arrays.copyOf(tables, tables.length * 2);
+        int offset = tablesSize;
+        Arrays.fill(tables, offset, offset + STRIDE_SIZE, id);
+        tablesSize += STRIDE_SIZE;
+        return offset;
+    }
+
+    @Override
+    public IPLocation get(String ipStr) {
+        long key = IPUtil.parseIPv4(ipStr);
+        if (key < 0)
+            return IPv4RadixIntTree.NO_VALUE;
+        return get((int) key);
+    }
+
+    @Override
+    public IPLocation getIPLocation(String ip) {
+        return get(ip);
+    }
+
+    @Override
+    public IPLocation get(long key) {
+        return get((int) key);
+    }
+
+    @Override
+    public IPLocation get(int key) {
+        return values[getId(key)];
+    }
+
+    @Override
+    public int getId(int key) {
+        int e = tables[key >>> 16];
+        if (e < 0) {
+            e = tables[~e + ((key >>> 8) & 0xff)];
+            if (e < 0)
+                e = tables[~e + (key & 0xff)];
+        }
+        return e;
+    }
+}
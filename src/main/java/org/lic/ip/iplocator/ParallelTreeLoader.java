@@ -0,0 +1,339 @@
+package org.lic.ip.iplocator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Loads an ipdb_all_* text database on several threads:
+ * <ol>
+ * <li>the mapped file is split into byte ranges at line boundaries, and each
+ * range is parsed by one task with a {@link TextRecordReader} into per first
+ * octet buckets of (network, prefix length, location id) records, with a
+ * dictionary of its own;</li>
+ * <li>the range dictionaries are merged in file order, so location ids are the
+ * ones a sequential load would give;</li>
+ * <li>one task per first octet builds the subtree of that /8 from the buckets
+ * of all the ranges, in file order;</li>
+ * <li>the prefixes shorter than /8 are put in the final tree, and the subtrees
+ * are grafted under it; IPv6 prefixes are then put in its IPv6 tree.</li>
+ * </ol>
+ * The result answers every lookup like a sequential load, only the node
+ * numbering differs. Each phase logs its speedup, i.e. the summed time of its
+ * tasks over its elapsed time.
+ */
+public class ParallelTreeLoader {
+    private static final Logger logger = LoggerFactory
+        .getLogger(ParallelTreeLoader.class);
+
+    private ParallelTreeLoader() {
+    }
+
+    /**
+     * Loads a text database into a new tree.
+     *
+     * @param filepath
+     *            ipdb file in the ipdb_all_* text format
+     * @param threads
+     *            number of loading threads
+     * @return a fully constructed tree
+     * @throws IOException
+     */
+    public static IPv4RadixIntTree load(String filepath, int threads)
+        throws IOException {
+        IPv4RadixIntTree tree = new IPv4RadixIntTree(1);
+        load(tree, filepath, threads);
+        return tree;
+    }
+
+    static void load(IPv4RadixIntTree tree, String filepath, int threads)
+        throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            load(tree, filepath, threads, executor);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void load(IPv4RadixIntTree tree, String filepath,
+        int threads, ExecutorService executor) throws IOException {
+        long start = System.currentTimeMillis();
+
+        // 1. parse the byte ranges
+        List<RangeParser> parsers = new ArrayList<RangeParser>();
+        RandomAccessFile file = new RandomAccessFile(filepath, "r");
+        try {
+            FileChannel fc = file.getChannel();
+            MappedByteBuffer bb = fc.map(FileChannel.MapMode.READ_ONLY, 0,
+                fc.size());
+            int[] bounds = splitAtLines(bb, threads);
+            for (int i = 0; i < threads; i++) {
+                if (bounds[i] < bounds[i + 1])
+                    parsers.add(new RangeParser(bb, bounds[i], bounds[i + 1]));
+            }
+            runAll(executor, parsers, "parse", start);
+        } finally {
+            file.close();
+        }
+
+        // 2. merge the dictionaries in file order
+        LocationDictionary dictionary = tree.getDictionary();
+        for (RangeParser parser: parsers) {
+            LocationDictionary local = parser.dictionary;
+            int[] ids = new int[local.size()];
+            for (int id = 1; id < ids.length; id++) {
+                ids[id] = dictionary.intern(local, id);
+            }
+            parser.remap(ids);
+        }
+
+        // 3. build one subtree per /8
+        long buildStart = System.currentTimeMillis();
+        List<SubtreeBuilder> builders = new ArrayList<SubtreeBuilder>();
+        for (int octet = 0; octet < 256; octet++) {
+            builders.add(new SubtreeBuilder(parsers, octet));
+        }
+        runAll(executor, builders, "build", buildStart);
+
+        // 4. put the short prefixes, then graft the subtrees
+        int nodes = 1;
+        for (SubtreeBuilder builder: builders) {
+            if (builder.subtree != null)
+                nodes += builder.subtree.size() + 8;
+        }
+        for (RangeParser parser: parsers) {
+            nodes += 8 * parser.records[256].size / 3;
+        }
+        tree.init(nodes);
+        for (RangeParser parser: parsers) {
+            IntList shorts = parser.records[256];
+            for (int i = 0; i < shorts.size; i += 3) {
+                long key = shorts.data[i] & 0xffffffffL;
+                tree.put(key, IPv4RadixIntTree.maskOf(shorts.data[i + 1]),
+                    shorts.data[i + 2]);
+            }
+        }
+        for (SubtreeBuilder builder: builders) {
+            if (builder.subtree != null)
+                tree.graft(builder.octet, builder.subtree);
+        }
+
+        // 5. the IPv6 prefixes, few enough to put sequentially
+        IPv6RadixTree ipv6 = tree.getIPv6();
+        for (RangeParser parser: parsers) {
+            int[] r = parser.ipv6.data;
+            for (int i = 0; i < parser.ipv6.size; i += 6) {
+                ipv6.put((long) r[i] << 32 | r[i + 1] & 0xffffffffL,
+                    (long) r[i + 2] << 32 | r[i + 3] & 0xffffffffL, r[i + 4],
+                    r[i + 5]);
+            }
+        }
+        tree.trimToSize();
+
+        logger.info("parallel load ok, {} threads, tree size: {}, locations: {}, cost: {}ms",
+            new Object[] { threads, tree.size(), dictionary.size(),
+                System.currentTimeMillis() - start });
+    }
+
+    /**
+     * Splits a buffer into ranges of about the same size, each one starting
+     * right after a line feed.
+     *
+     * @return n + 1 range bounds, from 0 to the buffer limit
+     */
+    private static int[] splitAtLines(ByteBuffer bb, int n) {
+        int length = bb.limit();
+        int[] bounds = new int[n + 1];
+        bounds[n] = length;
+        for (int i = 1; i < n; i++) {
+            int pos = (int) Math.max(bounds[i - 1], (long) length * i / n);
+            while (pos < length && bb.get(pos++) != '\n')
+                ;
+            bounds[i] = pos;
+        }
+        return bounds;
+    }
+
+    private static <T extends Task> void runAll(ExecutorService executor,
+        List<T> tasks, String phase, long phaseStart) throws IOException {
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        for (T task: tasks) {
+            futures.add(executor.submit(task));
+        }
+        try {
+            for (Future<Void> future: futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while loading");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new IOException(cause.toString());
+        }
+
+        long elapsed = Math.max(System.currentTimeMillis() - phaseStart, 1);
+        long busy = 0;
+        for (T task: tasks) {
+            busy += task.millis;
+        }
+        logger.info("{}: {} tasks, {}ms, speedup: {}", new Object[] { phase,
+            tasks.size(), elapsed, String.format("%.1f", (double) busy / elapsed) });
+    }
+
+    private static abstract class Task implements Callable<Void> {
+        long millis;
+
+        @Override
+        public Void call() throws Exception {
+            long start = System.currentTimeMillis();
+            run();
+            millis = System.currentTimeMillis() - start;
+            return null;
+        }
+
+        abstract void run() throws Exception;
+    }
+
+    /**
+     * Parses the lines of a byte range into (network, prefix length, id)
+     * triples: records[o] holds the prefixes of at least /8 under the first
+     * octet o, with the network shifted left by 8 bits, records[256] the
+     * shorter ones. IPv6 records are kept apart.
+     */
+    private static class RangeParser extends Task {
+        private final ByteBuffer range;
+
+        final LocationDictionary dictionary = new LocationDictionary();
+
+        final IntList[] records = new IntList[257];
+
+        /**
+         * IPv6 records, as 6 ints each: the network in 4 ints, high ones
+         * first, then the prefix length and the id.
+         */
+        final IntList ipv6 = new IntList();
+
+        RangeParser(ByteBuffer bb, int from, int to) {
+            ByteBuffer dup = bb.duplicate();
+            dup.position(from);
+            dup.limit(to);
+            this.range = dup.slice();
+        }
+
+        @Override
+        void run() {
+            records[256] = new IntList();
+            TextRecordReader reader = new TextRecordReader(range, dictionary);
+            while (reader.next()) {
+                if (reader.ipv6) {
+                    ipv6.add((int) (reader.networkHi >>> 32));
+                    ipv6.add((int) reader.networkHi);
+                    ipv6.add((int) (reader.networkLo >>> 32));
+                    ipv6.add((int) reader.networkLo);
+                    ipv6.add(reader.prefixlen);
+                    ipv6.add(reader.id);
+                    continue;
+                }
+                long ip = reader.network;
+                IntList list;
+                if (reader.prefixlen < 8) {
+                    list = records[256];
+                } else {
+                    int octet = (int) (ip >>> 24);
+                    list = records[octet];
+                    if (list == null)
+                        list = records[octet] = new IntList();
+                    ip = ip << 8;
+                }
+                list.add((int) ip);
+                list.add(reader.prefixlen);
+                list.add(reader.id);
+            }
+        }
+
+        void remap(int[] ids) {
+            for (IntList list: records) {
+                if (list == null)
+                    continue;
+                for (int i = 2; i < list.size; i += 3) {
+                    list.data[i] = ids[list.data[i]];
+                }
+            }
+            for (int i = 5; i < ipv6.size; i += 6) {
+                ipv6.data[i] = ids[ipv6.data[i]];
+            }
+        }
+    }
+
+    /**
+     * Builds the subtree of one /8 network from the records of all the
+     * ranges, its root standing for the /8 itself.
+     */
+    private static class SubtreeBuilder extends Task {
+        private final List<RangeParser> parsers;
+
+        final int octet;
+
+        IPv4RadixIntTree subtree;
+
+        SubtreeBuilder(List<RangeParser> parsers, int octet) {
+            this.parsers = parsers;
+            this.octet = octet;
+        }
+
+        @Override
+        void run() {
+            int records = 0;
+            for (RangeParser parser: parsers) {
+                if (parser.records[octet] != null)
+                    records += parser.records[octet].size / 3;
+            }
+            if (records == 0)
+                return;
+
+            IPv4RadixIntTree t = IPv4RadixIntTree.nodesOnly(records * 2);
+            for (RangeParser parser: parsers) {
+                IntList list = parser.records[octet];
+                if (list == null)
+                    continue;
+                for (int i = 0; i < list.size; i += 3) {
+                    long key = list.data[i] & 0xffffffffL;
+                    t.put(key, IPv4RadixIntTree.maskOf(list.data[i + 1] - 8),
+                        list.data[i + 2]);
+                }
+            }
+            subtree = t;
+        }
+    }
+
+    private static class IntList {
+        int[] data = new int[48];
+
+        int size;
+
+        void add(int v) {
+            if (size == data.length)
+                data = Arrays.copyOf(data, size * 2);
+            data[size++] = v;
+        }
+    }
+}
@@ -0,0 +1,325 @@
+package org.lic.ip.iplocator;
+
+import org.apache.commons.lang.time.StopWatch;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds an {@link IPv4Engine} whose database can be replaced while serving
+ * lookups. A new engine is built on a background thread and published with a
+ * single volatile write, so lookups never wait for a reload: the ones in
+ * flight finish on the previous engine, the next ones see the new one. A
+ * failed reload keeps the previous engine.
+ *
+ * Optionally, a directory is polled for ipdb_all_* files, and the last one
+ * (by name, i.e. by date) is loaded whenever it changes. Files should be
+ * written aside and renamed into the directory; as a safeguard, the watcher
+ * does not load a file that is empty or less than half the size of the
+ * loaded one, which is most likely still being written or truncated. Small
+ * updates can be shipped as a {@link DeltaFile} and applied to the current
+ * tree instead.
+ */
+public class ReloadableEngine implements IPv4Engine {
+    private static final Logger logger = LoggerFactory
+        .getLogger(ReloadableEngine.class);
+
+    private static final String DB_PREFIX = "ipdb_all_";
+
+    /**
+     * A watched file smaller than this percentage of the loaded file is taken
+     * as incomplete.
+     */
+    private static final int MIN_SIZE_PERCENT = 50;
+
+    private final String engineName;
+
+    private volatile IPv4Engine engine;
+
+    private volatile String loadedPath;
+
+    private volatile long loadedLength;
+
+    // tree the engine was built from, null for the mapped engine; only
+    // touched by the constructor and the executor thread
+    private IPv4RadixIntTree tree;
+
+    private final ScheduledExecutorService executor;
+
+    private final AtomicLong reloads = new AtomicLong();
+
+    private final AtomicLong failures = new AtomicLong();
+
+    private volatile long lastReloadMillis;
+
+    private volatile Exception lastError;
+
+    // file last tried by the watcher, only touched by the executor thread
+    private String watchedPath;
+
+    private long watchedModified;
+
+    private long watchedLength;
+
+    /**
+     * Loads the initial database in the calling thread.
+     *
+     * @param engineName
+     *            engine name, see {@link IPv4Engines}
+     * @param filepath
+     *            initial ipdb file
+     * @throws IOException
+     *             if the initial file can not be loaded
+     */
+    public ReloadableEngine(String engineName, String filepath)
+        throws IOException {
+        this.engineName = engineName;
+        load(filepath);
+
+        this.executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "ipdb-reloader");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * @return the engine currently serving lookups
+     */
+    public IPv4Engine getEngine() {
+        return engine;
+    }
+
+    /**
+     * Loads a new database in the background and swaps it in once fully
+     * built. Reloads are run one at a time, in submission order.
+     *
+     * @param filepath
+     *            ipdb file to load
+     * @return true once swapped in, false if the load failed
+     */
+    public Future<Boolean> reload(final String filepath) {
+        return executor.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return reload0(filepath);
+            }
+        });
+    }
+
+    private void load(String filepath) throws IOException {
+        if (IPv4Engines.MAPPED.equals(engineName)) {
+            engine = MappedRadixTree.open(filepath);
+            tree = null;
+        } else {
+            IPv4RadixIntTree t = IPv4RadixIntTree.load(filepath);
+            engine = IPv4Engines.create(engineName, t);
+            tree = t;
+        }
+        loadedPath = filepath;
+        loadedLength = new File(filepath).length();
+    }
+
+    private boolean reload0(String filepath) {
+        StopWatch sw = new StopWatch();
+        sw.start();
+        try {
+            load(filepath);
+            sw.stop();
+            lastReloadMillis = sw.getTime();
+            reloads.incrementAndGet();
+            logger.info("reload ok, {} -> {}, cost: {}ms", new Object[] {
+                engineName, filepath, lastReloadMillis });
+            return true;
+        } catch (Exception e) {
+            lastError = e;
+            failures.incrementAndGet();
+            logger.error("reload " + filepath + " failed, keep " + loadedPath,
+                e);
+            return false;
+        }
+    }
+
+    /**
+     * Applies a delta file to a copy of the current tree in the background,
+     * then swaps in an engine built from the patched copy. Not available for
+     * the mapped engine, which has no on-heap tree to patch.
+     *
+     * @param deltaPath
+     *            delta file, see {@link DeltaFile}
+     * @return true once swapped in, false if the delta failed
+     */
+    public Future<Boolean> applyDelta(final String deltaPath) {
+        return executor.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return applyDelta0(deltaPath);
+            }
+        });
+    }
+
+    private boolean applyDelta0(String deltaPath) {
+        StopWatch sw = new StopWatch();
+        sw.start();
+        try {
+            if (tree == null)
+                throw new IllegalStateException("no tree to patch for "
+                    + engineName + " engine");
+            IPv4RadixIntTree t = tree.applyDelta(deltaPath);
+            engine = IPv4Engines.create(engineName, t);
+            tree = t;
+            sw.stop();
+            lastReloadMillis = sw.getTime();
+            reloads.incrementAndGet();
+            logger.info("delta ok, {} + {}, cost: {}ms", new Object[] {
+                loadedPath, deltaPath, lastReloadMillis });
+            return true;
+        } catch (Exception e) {
+            lastError = e;
+            failures.incrementAndGet();
+            logger.error("delta " + deltaPath + " failed, keep " + loadedPath,
+                e);
+            return false;
+        }
+    }
+
+    /**
+     * Polls a directory for ipdb_all_* files, reloading the last one by name
+     * whenever it is a new file or its modification time or length has
+     * changed. A file that fails to load, or is refused as incomplete, is
+     * tried again only once it changes.
+     *
+     * @param dir
+     *            directory to poll
+     * @param periodMillis
+     *            polling period
+     */
+    public void watch(final String dir, long periodMillis) {
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    poll(new File(dir));
+                } catch (Exception e) {
+                    logger.error("poll " + dir + " failed", e);
+                }
+            }
+        }, 0, periodMillis, TimeUnit.MILLISECONDS);
+        logger.info("watching {} every {}ms", dir, periodMillis);
+    }
+
+    private void poll(File dir) {
+        File[] files = dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File d, String name) {
+                return name.startsWith(DB_PREFIX);
+            }
+        });
+        if (files == null || files.length == 0)
+            return;
+
+        File last = files[0];
+        for (File f: files) {
+            if (f.getName().compareTo(last.getName()) > 0)
+                last = f;
+        }
+
+        String path = last.getPath();
+        long modified = last.lastModified();
+        long length = last.length();
+        if (path.equals(watchedPath) && modified == watchedModified
+            && length == watchedLength)
+            return;
+        // the file given to the constructor is already loaded
+        boolean loaded = watchedPath == null && path.equals(loadedPath);
+        watchedPath = path;
+        watchedModified = modified;
+        watchedLength = length;
+        if (loaded)
+            return;
+
+        if (length == 0 || length * 100 < loadedLength * MIN_SIZE_PERCENT) {
+            lastError = new IOException(path + " looks incomplete, length: "
+                + length + ", loaded: " + loadedLength);
+            failures.incrementAndGet();
+            logger.warn("skip {}, keep {}", lastError.getMessage(), loadedPath);
+            return;
+        }
+        reload0(path);
+    }
+
+    /**
+     * Stops the background thread, the current engine keeps serving lookups.
+     */
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    public String getLoadedPath() {
+        return loadedPath;
+    }
+
+    public long getReloadCount() {
+        return reloads.get();
+    }
+
+    public long getFailureCount() {
+        return failures.get();
+    }
+
+    /**
+     * @return duration of the last successful reload
+     */
+    public long getLastReloadMillis() {
+        return lastReloadMillis;
+    }
+
+    /**
+     * @return cause of the last failed reload, null if none failed
+     */
+    public Exception getLastError() {
+        return lastError;
+    }
+
+    @Override
+    public IPLocation get(String ipStr) {
+        return engine.get(ipStr);
+    }
+
+    @Override
+    public IPLocation getIPLocation(String ip) {
+        return get(ip);
+    }
+
+    @Override
+    public IPLocation get(long key) {
+        return engine.get(key);
+    }
+
+    @Override
+    public IPLocation get(int key) {
+        return engine.get(key);
+    }
+
+    /**
+     * Ids change with each reload: resolve them against the dictionary of the
+     * same {@link #getEngine()} snapshot, not across calls.
+     */
+    @Override
+    public int getId(int key) {
+        return engine.getId(key);
+    }
+}
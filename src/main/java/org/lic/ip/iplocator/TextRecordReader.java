@@ -0,0 +1,231 @@
+package org.lic.ip.iplocator;
+
+import org.lic.ip.util.IPUtil;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+
+/**
+ * Streams the records of an ipdb_all_* text database straight out of its
+ * UTF-8 bytes, typically a memory-mapped file:
+ *
+ * <pre>
+ * 1.0.1.0/24;中国;福建省;福州市;电信;1.0.1.208;256
+ * </pre>
+ *
+ * IPv6 networks ("2001:db8::/32;...") are accepted in the same format.
+ *
+ * The network is parsed from the bytes, and the country, province, city and
+ * isp fields are resolved to strings of the dictionary pool through a small
+ * cache keyed by their bytes, so that the many lines sharing a location do
+ * not allocate or hash any string; the location is then interned, as
+ * {@link IPv4RadixIntTree#internLine} would. The sample ip and amount fields
+ * are skipped. Not thread-safe.
+ */
+class TextRecordReader {
+
+    private static final int CACHE_SIZE = 1024;
+
+    private final ByteBuffer buf;
+
+    private final LocationDictionary dictionary;
+
+    private int pos;
+
+    private final int end;
+
+    private final byte[][] cachedBytes = new byte[CACHE_SIZE][];
+
+    /** Pool indexes in the dictionary of the cached strings. */
+    private final int[] cachedIds = new int[CACHE_SIZE];
+
+    private final StringBuilder chars = new StringBuilder(45);
+
+    private final long[] key = new long[2];
+
+    /** Whether the current record is an IPv6 network. */
+    boolean ipv6;
+
+    /** Network of the current IPv4 record. */
+    long network;
+
+    /** High 64 bits of the network of the current IPv6 record. */
+    long networkHi;
+
+    /** Low 64 bits of the network of the current IPv6 record. */
+    long networkLo;
+
+    /** Prefix length of the current record. */
+    int prefixlen;
+
+    /** Dictionary id of the location of the current record. */
+    int id;
+
+    /**
+     * @param buf
+     *            bytes from its position to its limit are read, with
+     *            absolute gets
+     * @param dictionary
+     *            dictionary interning the locations
+     */
+    TextRecordReader(ByteBuffer buf, LocationDictionary dictionary) {
+        this.buf = buf;
+        this.dictionary = dictionary;
+        this.pos = buf.position();
+        this.end = buf.limit();
+    }
+
+    /**
+     * Reads the next record, skipping empty lines.
+     *
+     * @return false at the end of the buffer
+     * @throws IllegalArgumentException
+     *             if the line is malformed
+     */
+    boolean next() {
+        while (pos < end && (buf.get(pos) == '\n' || buf.get(pos) == '\r'))
+            pos++;
+        if (pos >= end)
+            return false;
+
+        int lineStart = pos;
+        int eol = lineStart;
+        while (eol < end && buf.get(eol) != '\n')
+            eol++;
+        int lineEnd = eol;
+        if (lineEnd > lineStart && buf.get(lineEnd - 1) == '\r')
+            lineEnd--;
+        pos = eol;
+
+        int slash = lineStart;
+        boolean colon = false;
+        byte b;
+        while (slash < lineEnd && (b = buf.get(slash)) != '/' && b != ';') {
+            colon |= b == ':';
+            slash++;
+        }
+        if (slash == lineEnd || buf.get(slash) != '/')
+            throw invalid(lineStart, lineEnd);
+
+        int p;
+        if (colon) {
+            // 2001:db8::/32
+            chars.setLength(0);
+            for (p = lineStart; p < slash; p++) {
+                chars.append((char) (buf.get(p) & 0xff));
+            }
+            if (!IPUtil.parseIPv6(chars, 0, chars.length(), key))
+                throw invalid(lineStart, lineEnd);
+            networkHi = key[0];
+            networkLo = key[1];
+        } else {
+            // a.b.c.d/e
+            long ip = 0;
+            p = lineStart;
+            for (int octet = 0; octet < 4; octet++) {
+                int value = 0;
+                int digits = 0;
+                while (p < slash && (b = buf.get(p)) >= '0' && b <= '9'
+                    && digits < 3) {
+                    value = value * 10 + (b - '0');
+                    digits++;
+                    p++;
+                }
+                // p stops at the first '/', which is slash
+                if (digits == 0 || value > 255
+                    || buf.get(p) != (octet < 3 ? '.' : '/'))
+                    throw invalid(lineStart, lineEnd);
+                ip = (ip << 8) | value;
+                p++;
+            }
+            network = ip;
+        }
+        p = slash + 1;
+
+        int len = 0;
+        int digits = 0;
+        while (p < lineEnd && (b = buf.get(p)) >= '0' && b <= '9'
+            && digits < 3) {
+            len = len * 10 + (b - '0');
+            digits++;
+            p++;
+        }
+        if (digits == 0 || len > (colon ? 128 : 32) || p >= lineEnd
+            || buf.get(p) != ';')
+            throw invalid(lineStart, lineEnd);
+        p++;
+
+        // country;province;city;isp
+        int countryStart = p;
+        int countryEnd = fieldEnd(p, lineEnd);
+        int provinceStart = Math.min(countryEnd + 1, lineEnd);
+        int provinceEnd = fieldEnd(provinceStart, lineEnd);
+        int cityStart = Math.min(provinceEnd + 1, lineEnd);
+        int cityEnd = fieldEnd(cityStart, lineEnd);
+        int ispStart = Math.min(cityEnd + 1, lineEnd);
+        int ispEnd = fieldEnd(ispStart, lineEnd);
+
+        ipv6 = colon;
+        prefixlen = len;
+        id = dictionary.intern(stringId(countryStart, countryEnd),
+            stringId(provinceStart, provinceEnd), stringId(cityStart, cityEnd),
+            stringId(ispStart, ispEnd));
+        return true;
+    }
+
+    private int fieldEnd(int p, int lineEnd) {
+        while (p < lineEnd && buf.get(p) != ';')
+            p++;
+        return p;
+    }
+
+    private boolean equalsBytes(int from, int to, byte[] bytes) {
+        if (to - from != bytes.length)
+            return false;
+        for (int i = 0; i < bytes.length; i++) {
+            if (buf.get(from + i) != bytes[i])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return index in the dictionary pool of the string of the bytes
+     */
+    private int stringId(int from, int to) {
+        int hash = 0;
+        for (int i = from; i < to; i++) {
+            hash = 31 * hash + buf.get(i);
+        }
+        int slot = (hash ^ (hash >>> 16)) & (CACHE_SIZE - 1);
+        byte[] cached = cachedBytes[slot];
+        if (cached != null && equalsBytes(from, to, cached))
+            return cachedIds[slot];
+
+        byte[] bytes = new byte[to - from];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buf.get(from + i);
+        }
+        int id = dictionary.stringId(newString(bytes));
+        cachedBytes[slot] = bytes;
+        cachedIds[slot] = id;
+        return id;
+    }
+
+    private IllegalArgumentException invalid(int from, int to) {
+        byte[] bytes = new byte[to - from];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buf.get(from + i);
+        }
+        return new IllegalArgumentException("invalid ip network at byte "
+            + from + ": " + newString(bytes));
+    }
+
+    private static String newString(byte[] bytes) {
+        try {
+            return new String(bytes, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
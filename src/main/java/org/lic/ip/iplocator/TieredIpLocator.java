@@ -0,0 +1,151 @@
+package org.lic.ip.iplocator;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Composite {@link IpLocator} asking its tiers in the configured order, and
+ * answering the first location that is not unknown, e.g. an in-memory
+ * {@link IPv4RadixIntTree} first and the qqwry database
+ * ({@link org.lic.ip.ipseeker.IPSeeker#SHARED}) as a fallback:
+ *
+ * <pre>
+ * TieredIpLocator locator = new TieredIpLocator.Builder()
+ *     .add("ipdb", tree)
+ *     .add("qqwry", IPSeeker.SHARED)
+ *     .build();
+ * </pre>
+ *
+ * Each tier counts its hits, the lookups it answered, and its misses, the
+ * lookups it was asked and could not answer, so that the misses of the first
+ * tier tell how often the fallback is paid for. Lookups none of the tiers
+ * could answer are counted apart, and answer the last unknown location.
+ *
+ * Thread-safe as long as the tiers are.
+ */
+public class TieredIpLocator implements IpLocator {
+
+    private final String[] names;
+
+    private final IpLocator[] tiers;
+
+    private final AtomicLongArray hits;
+
+    private final AtomicLongArray misses;
+
+    private final AtomicLong unresolved = new AtomicLong();
+
+    private TieredIpLocator(Builder builder) {
+        names = builder.names.toArray(new String[builder.names.size()]);
+        tiers = builder.tiers.toArray(new IpLocator[builder.tiers.size()]);
+        hits = new AtomicLongArray(tiers.length);
+        misses = new AtomicLongArray(tiers.length);
+    }
+
+    @Override
+    public IPLocation getIPLocation(String ip) {
+        IPLocation last = null;
+        for (int i = 0; i < tiers.length; i++) {
+            IPLocation loc = tiers[i].getIPLocation(ip);
+            if (loc != null && !loc.isUnknown()) {
+                hits.incrementAndGet(i);
+                return loc;
+            }
+            misses.incrementAndGet(i);
+            if (loc != null)
+                last = loc;
+        }
+        unresolved.incrementAndGet();
+        return last != null ? last : IPv4RadixIntTree.NO_VALUE;
+    }
+
+    /**
+     * @return number of tiers
+     */
+    public int getTierCount() {
+        return tiers.length;
+    }
+
+    /**
+     * @return name the tier was added with
+     */
+    public String getTierName(int tier) {
+        return names[tier];
+    }
+
+    /**
+     * @return number of lookups answered by the tier
+     */
+    public long getHits(int tier) {
+        return hits.get(tier);
+    }
+
+    /**
+     * @return number of lookups the tier was asked and answered an unknown
+     *         location
+     */
+    public long getMisses(int tier) {
+        return misses.get(tier);
+    }
+
+    /**
+     * @return number of lookups no tier could answer
+     */
+    public long getUnresolved() {
+        return unresolved.get();
+    }
+
+    /**
+     * Sets all the counters back to zero.
+     */
+    public void resetStats() {
+        for (int i = 0; i < tiers.length; i++) {
+            hits.set(i, 0);
+            misses.set(i, 0);
+        }
+        unresolved.set(0);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("TieredIpLocator [");
+        for (int i = 0; i < tiers.length; i++) {
+            sb.append(names[i]).append(": hits=").append(hits.get(i))
+                .append(", misses=").append(misses.get(i)).append("; ");
+        }
+        return sb.append("unresolved=").append(unresolved.get()).append(']')
+            .toString();
+    }
+
+    public static class Builder {
+        private final List<String> names = new ArrayList<String>();
+
+        private final List<IpLocator> tiers = new ArrayList<IpLocator>();
+
+        /**
+         * Adds a tier, asked after the ones already added.
+         *
+         * @param name
+         *            name of the tier in the statistics
+         */
+        public Builder add(String name, IpLocator tier) {
+            if (tier == null)
+                throw new IllegalArgumentException("null tier: " + name);
+            names.add(name);
+            tiers.add(tier);
+            return this;
+        }
+
+        /**
+         * @throws IllegalStateException
+         *             if no tier was added
+         */
+        public TieredIpLocator build() {
+            if (tiers.isEmpty())
+                throw new IllegalStateException("no tier");
+            return new TieredIpLocator(this);
+        }
+    }
+}
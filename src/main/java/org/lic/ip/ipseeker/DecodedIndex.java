@@ -0,0 +1,127 @@
+package org.lic.ip.ipseeker;
+
+import org.lic.ip.iplocator.IPLocation;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * <pre>
+ * 纯真IP库索引区的堆内解码版本，供IPSeeker的decoded模式使用。
+ * 启动时把每条索引记录的起始ip、结束ip解码成有序的int数组，把记录指向的国家和地区
+ * 解码一次并去重成IPLocation数组，每条记录只存地点的下标。
+ * 查询是int数组上的二分查找，不再读映射文件，也不再做GBK解码。
+ * ip按无符号数排序，数组中存的是翻转了符号位的值，可以直接按有符号数比较。
+ * 构造后不再修改，线程安全。
+ * </pre>
+ */
+class DecodedIndex {
+
+    private final int[] beginIps;
+
+    private final int[] endIps;
+
+    private final int[] locationIds;
+
+    /** 去重后的地点 */
+    private final IPLocation[] locations;
+
+    private DecodedIndex(Builder builder) {
+        beginIps = builder.beginIps;
+        endIps = builder.endIps;
+        locationIds = builder.locationIds;
+        locations = new IPLocation[builder.locations.size()];
+        for (Map.Entry<IPLocation, Integer> e: builder.locations.entrySet()) {
+            locations[e.getValue()] = e.getKey();
+        }
+    }
+
+    /**
+     * @param ip
+     *            要查询的IP，big-endian的int形式
+     * @return 包含ip的记录的区间和地点；不在任何记录中时为所在的空隙，
+     *         地点为IPLocation.getNullInstance()
+     */
+    IntervalLocationCache.Entry find(int ip) {
+        int key = ip ^ Integer.MIN_VALUE;
+        // 找最后一个起始ip <= ip的记录
+        int lo = 0;
+        int hi = beginIps.length - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (beginIps[mid] <= key)
+                lo = mid + 1;
+            else
+                hi = mid - 1;
+        }
+        if (hi >= 0 && key <= endIps[hi])
+            return new IntervalLocationCache.Entry(beginIps[hi]
+                ^ Integer.MIN_VALUE, endIps[hi] ^ Integer.MIN_VALUE,
+                locations[locationIds[hi]]);
+        // 空隙为前一条记录之后到后一条记录之前
+        int gapBegin = hi >= 0 ? (endIps[hi] ^ Integer.MIN_VALUE) + 1 : 0;
+        int gapEnd = lo < beginIps.length
+            ? (beginIps[lo] ^ Integer.MIN_VALUE) - 1 : -1;
+        return new IntervalLocationCache.Entry(gapBegin, gapEnd,
+            IPLocation.getNullInstance());
+    }
+
+    /**
+     * @return 记录数
+     */
+    int size() {
+        return beginIps.length;
+    }
+
+    /**
+     * @return 去重后的地点数
+     */
+    int locationCount() {
+        return locations.length;
+    }
+
+    static class Builder {
+        private final int[] beginIps;
+
+        private final int[] endIps;
+
+        private final int[] locationIds;
+
+        private int records;
+
+        private final Map<IPLocation, Integer> locations = new HashMap<IPLocation, Integer>();
+
+        /**
+         * @param records
+         *            索引区的记录数
+         */
+        Builder(int records) {
+            beginIps = new int[records];
+            endIps = new int[records];
+            locationIds = new int[records];
+        }
+
+        /**
+         * 按索引区的顺序，即起始ip升序加入记录
+         */
+        void add(int beginIp, int endIp, IPLocation location) {
+            beginIps[records] = beginIp ^ Integer.MIN_VALUE;
+            endIps[records] = endIp ^ Integer.MIN_VALUE;
+            Integer id = locations.get(location);
+            if (id == null) {
+                id = locations.size();
+                // IPSeeker读出的字符串已按内容共用
+                locations.put(location, id);
+            }
+            locationIds[records] = id;
+            records++;
+        }
+
+        DecodedIndex build() {
+            if (records != beginIps.length)
+                throw new IllegalStateException("records: " + records
+                    + ", expected: " + beginIps.length);
+            return new DecodedIndex(this);
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package org.lic.ip.ipseeker;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * <pre>
+ * 纯真IP库中国家、地区字符串的解码结果，以字符串的GBK字节为key。
+ * 查询时在映射文件上直接对字节算散列并比较，命中就共用同一个String，不再做GBK解码。
+ * 库中同一字符串常在不同偏移存了多份，自带的qqwry.dat约28万个偏移
+ * 只有367个不同的非空字符串，
+ * 按内容而不是按偏移做key，每个不同的字符串只占一项：Entry、它的GBK字节和String，
+ * 自带的库全部填满也只有几十KB。
+ * 开放寻址表，槽位里是不可变的Entry：读不加锁也不分配对象，写加锁，
+ * 超过半满时复制到两倍大的新表再整体发布，读线程看到旧表时至多多走一次写的路径。
+ * </pre>
+ */
+class GbkStringPool {
+
+    private static final class Entry {
+        final byte[] bytes;
+
+        final int hash;
+
+        final String value;
+
+        Entry(byte[] bytes, int hash, String value) {
+            this.bytes = bytes;
+            this.hash = hash;
+            this.value = value;
+        }
+    }
+
+    private volatile Entry[] table;
+
+    /** 只在持有锁时读写 */
+    private int size;
+
+    private final int initialCapacity;
+
+    /**
+     * @param capacity
+     *            初始槽位数，向上取整为2的幂
+     */
+    GbkStringPool(int capacity) {
+        initialCapacity = Integer.highestOneBit(Math.max(capacity - 1, 1))
+            << 1;
+        table = new Entry[initialCapacity];
+    }
+
+    private static int hash(ByteBuffer buf, int offset, int len) {
+        int h = 0;
+        for (int i = 0; i < len; i++) {
+            h = 31 * h + buf.get(offset + i);
+        }
+        return h;
+    }
+
+    private static int hash(byte[] bytes) {
+        int h = 0;
+        for (byte b: bytes) {
+            h = 31 * h + b;
+        }
+        return h;
+    }
+
+    private static int slot(int hash, int mask) {
+        int h = hash * 0x9e3779b9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    /**
+     * @param buf
+     *            映射文件，只做绝对位置的读取
+     * @param offset
+     *            字符串起始偏移
+     * @param len
+     *            字符串的字节数，不含结尾的0
+     * @return 这些字节的解码结果，还没有解码过返回null
+     */
+    String get(ByteBuffer buf, int offset, int len) {
+        int hash = hash(buf, offset, len);
+        Entry[] t = table;
+        int mask = t.length - 1;
+        for (int slot = slot(hash, mask);; slot = (slot + 1) & mask) {
+            Entry e = t[slot];
+            if (e == null)
+                return null;
+            if (e.hash == hash && matches(e.bytes, buf, offset, len))
+                return e.value;
+        }
+    }
+
+    private static boolean matches(byte[] bytes, ByteBuffer buf, int offset,
+        int len) {
+        if (bytes.length != len)
+            return false;
+        for (int i = 0; i < len; i++) {
+            if (bytes[i] != buf.get(offset + i))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * 记住一个字符串的解码结果
+     * 
+     * @param bytes
+     *            字符串的GBK字节，之后不可再修改
+     * @return 已有的解码结果，没有则为value
+     */
+    synchronized String putIfAbsent(byte[] bytes, String value) {
+        int hash = hash(bytes);
+        Entry[] t = table;
+        int mask = t.length - 1;
+        int slot = slot(hash, mask);
+        Entry e;
+        while ((e = t[slot]) != null) {
+            if (e.hash == hash && Arrays.equals(e.bytes, bytes))
+                return e.value;
+            slot = (slot + 1) & mask;
+        }
+        if (2 * (size + 1) > t.length)
+            t = resize(t);
+        insert(t, new Entry(bytes, hash, value));
+        size++;
+        return value;
+    }
+
+    private Entry[] resize(Entry[] old) {
+        Entry[] t = new Entry[old.length * 2];
+        for (Entry e: old) {
+            if (e != null)
+                insert(t, e);
+        }
+        table = t;
+        return t;
+    }
+
+    private static void insert(Entry[] t, Entry e) {
+        int mask = t.length - 1;
+        int slot = slot(e.hash, mask);
+        while (t[slot] != null) {
+            slot = (slot + 1) & mask;
+        }
+        t[slot] = e;
+    }
+
+    /**
+     * 丢掉所有解码结果，之后用到时重新解码
+     */
+    synchronized void clear() {
+        table = new Entry[initialCapacity];
+        size = 0;
+    }
+
+    /**
+     * @return 不同字符串的个数
+     */
+    synchronized int size() {
+        return size;
+    }
+}
@@ -0,0 +1,260 @@
+package org.lic.ip.ipseeker;
+
+import org.lic.ip.util.IPUtil;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <pre>
+ * 纯真IP库的地点倒排索引，供IPSeeker.getIPEntries使用。
+ * 建索引时把每条记录的国家和地区去重成字符串表，再为每个字符串的单字和相邻两字
+ * 建立到字符串的倒排表，为每个字符串建立到记录的倒排表。
+ * 查询时取查询串中倒排表最短的两字组合，逐个用indexOf确认候选字符串，
+ * 再合并命中字符串的记录，开销与候选和结果的数量成正比，而不是扫描整个文件。
+ * 索引记下数据文件的修改时间和长度，文件变化后由IPSeeker重建。
+ * </pre>
+ */
+class IPEntryIndex {
+
+    private static final int[] EMPTY = new int[0];
+
+    private final File file;
+
+    private final long lastModified;
+
+    private final long length;
+
+    private final int[] beginIps;
+
+    private final int[] endIps;
+
+    private final int[] countryIds;
+
+    private final int[] areaIds;
+
+    /** 去重后的国家、地区字符串 */
+    private final String[] strings;
+
+    /** 字符串id -> 国家或地区为该字符串的记录号，升序 */
+    private final int[][] stringRecords;
+
+    /** 单字 -> 包含该字的字符串id，升序 */
+    private final Map<Character, int[]> unigrams;
+
+    /** 相邻两字 -> 包含该两字的字符串id，升序 */
+    private final Map<Integer, int[]> bigrams;
+
+    private IPEntryIndex(Builder builder, File file) {
+        this.file = file;
+        this.lastModified = file.lastModified();
+        this.length = file.length();
+
+        int n = builder.records;
+        beginIps = Arrays.copyOf(builder.beginIps, n);
+        endIps = Arrays.copyOf(builder.endIps, n);
+        countryIds = Arrays.copyOf(builder.countryIds, n);
+        areaIds = Arrays.copyOf(builder.areaIds, n);
+        strings = builder.strings.toArray(new String[builder.strings.size()]);
+
+        int[] counts = new int[strings.length];
+        for (int r = 0; r < n; r++) {
+            counts[countryIds[r]]++;
+            if (areaIds[r] != countryIds[r])
+                counts[areaIds[r]]++;
+        }
+        stringRecords = new int[strings.length][];
+        for (int id = 0; id < strings.length; id++) {
+            stringRecords[id] = new int[counts[id]];
+            counts[id] = 0;
+        }
+        for (int r = 0; r < n; r++) {
+            int c = countryIds[r];
+            stringRecords[c][counts[c]++] = r;
+            int a = areaIds[r];
+            if (a != c)
+                stringRecords[a][counts[a]++] = r;
+        }
+
+        Map<Character, IntList> unigramLists = new HashMap<Character, IntList>();
+        Map<Integer, IntList> bigramLists = new HashMap<Integer, IntList>();
+        for (int id = 0; id < strings.length; id++) {
+            String s = strings[id];
+            for (int i = 0; i < s.length(); i++) {
+                Character c = s.charAt(i);
+                IntList list = unigramLists.get(c);
+                if (list == null)
+                    unigramLists.put(c, list = new IntList());
+                list.addOnce(id);
+                if (i > 0) {
+                    Integer bigram = bigram(s.charAt(i - 1), s.charAt(i));
+                    list = bigramLists.get(bigram);
+                    if (list == null)
+                        bigramLists.put(bigram, list = new IntList());
+                    list.addOnce(id);
+                }
+            }
+        }
+        unigrams = new HashMap<Character, int[]>(unigramLists.size() * 2);
+        for (Map.Entry<Character, IntList> e: unigramLists.entrySet()) {
+            unigrams.put(e.getKey(), e.getValue().toArray());
+        }
+        bigrams = new HashMap<Integer, int[]>(bigramLists.size() * 2);
+        for (Map.Entry<Integer, IntList> e: bigramLists.entrySet()) {
+            bigrams.put(e.getKey(), e.getValue().toArray());
+        }
+    }
+
+    private static Integer bigram(char c1, char c2) {
+        return (c1 << 16) | c2;
+    }
+
+    /**
+     * @return 数据文件在建索引后是否被修改
+     */
+    boolean isStale() {
+        return file.lastModified() != lastModified || file.length() != length;
+    }
+
+    /**
+     * @return 记录条数
+     */
+    int size() {
+        return beginIps.length;
+    }
+
+    /**
+     * 查找国家或地区包含s子串的记录，按记录在文件中的顺序返回
+     */
+    List<IPEntry> find(String s) {
+        if (s.length() == 0)
+            return entries(null);
+
+        int[] candidates;
+        if (s.length() == 1) {
+            candidates = unigrams.get(s.charAt(0));
+        } else {
+            candidates = null;
+            for (int i = 1; i < s.length() && candidates != EMPTY; i++) {
+                int[] ids = bigrams.get(bigram(s.charAt(i - 1), s.charAt(i)));
+                if (ids == null)
+                    candidates = EMPTY;
+                else if (candidates == null || ids.length < candidates.length)
+                    candidates = ids;
+            }
+        }
+        if (candidates == null || candidates.length == 0)
+            return new ArrayList<IPEntry>();
+
+        int total = 0;
+        int matched = 0;
+        int[] matches = new int[candidates.length];
+        for (int id: candidates) {
+            if (s.length() <= 2 || strings[id].indexOf(s) != -1) {
+                matches[matched++] = id;
+                total += stringRecords[id].length;
+            }
+        }
+
+        int[] records = new int[total];
+        int n = 0;
+        for (int i = 0; i < matched; i++) {
+            int[] r = stringRecords[matches[i]];
+            System.arraycopy(r, 0, records, n, r.length);
+            n += r.length;
+        }
+        Arrays.sort(records);
+        // 国家和地区都命中的记录只保留一次
+        int distinct = 0;
+        for (int i = 0; i < n; i++) {
+            if (distinct == 0 || records[distinct - 1] != records[i])
+                records[distinct++] = records[i];
+        }
+        return entries(Arrays.copyOf(records, distinct));
+    }
+
+    private List<IPEntry> entries(int[] records) {
+        int n = records == null ? beginIps.length : records.length;
+        List<IPEntry> ret = new ArrayList<IPEntry>(n);
+        for (int i = 0; i < n; i++) {
+            int r = records == null ? i : records[i];
+            IPEntry entry = new IPEntry();
+            entry.country = strings[countryIds[r]];
+            entry.area = strings[areaIds[r]];
+            entry.beginIp = IPUtil.ipLong2String(beginIps[r] & 0xffffffffL);
+            entry.endIp = IPUtil.ipLong2String(endIps[r] & 0xffffffffL);
+            ret.add(entry);
+        }
+        return ret;
+    }
+
+    /**
+     * 按文件顺序收集记录
+     */
+    static class Builder {
+        private int[] beginIps = new int[1024];
+
+        private int[] endIps = new int[1024];
+
+        private int[] countryIds = new int[1024];
+
+        private int[] areaIds = new int[1024];
+
+        private int records;
+
+        private final List<String> strings = new ArrayList<String>();
+
+        private final Map<String, Integer> stringIds = new HashMap<String, Integer>();
+
+        void add(int beginIp, int endIp, String country, String area) {
+            if (records == beginIps.length) {
+                beginIps = Arrays.copyOf(beginIps, records * 2);
+                endIps = Arrays.copyOf(endIps, records * 2);
+                countryIds = Arrays.copyOf(countryIds, records * 2);
+                areaIds = Arrays.copyOf(areaIds, records * 2);
+            }
+            beginIps[records] = beginIp;
+            endIps[records] = endIp;
+            countryIds[records] = stringId(country);
+            areaIds[records] = stringId(area);
+            records++;
+        }
+
+        private int stringId(String s) {
+            Integer id = stringIds.get(s);
+            if (id == null) {
+                id = strings.size();
+                strings.add(s);
+                stringIds.put(s, id);
+            }
+            return id;
+        }
+
+        IPEntryIndex build(File file) {
+            return new IPEntryIndex(this, file);
+        }
+    }
+
+    private static class IntList {
+        int[] data = new int[4];
+
+        int size;
+
+        /** ids按升序加入，同一个id连续加入时只保留一次 */
+        void addOnce(int v) {
+            if (size > 0 && data[size - 1] == v)
+                return;
+            if (size == data.length)
+                data = Arrays.copyOf(data, size * 2);
+            data[size++] = v;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(data, size);
+        }
+    }
+}
@@ -24,24 +24,26 @@
  */
 package org.lic.ip.ipseeker;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
+import java.net.URL;
 import java.nio.ByteOrder;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
 import java.util.Random;
-import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
 
 
 import org.apache.commons.lang.time.StopWatch;
 import org.apache.log4j.Logger;
 
-import com.googlecode.concurrentlinkedhashmap.ConcurrentLinkedHashMap;
 import org.lic.ip.iplocator.IPLocation;
+import org.lic.ip.iplocator.IpLocator;
+import org.lic.ip.util.IPUtil;
 
 /**
  * <pre>
@@ -50,7 +52,7 @@ import org.lic.ip.iplocator.IPLocation;
  * 
  * @author luma
  */
-public class IPSeeker {
+public class IPSeeker implements IpLocator {
 
     private static final int IP_RECORD_LENGTH = 7;
 
@@ -60,214 +62,348 @@ public class IPSeeker {
 
     private static Logger logger = Logger.getLogger(IPSeeker.class);
 
-    private static final ConcurrentLinkedHashMap<String, IPLocation> ipCacheMap = new ConcurrentLinkedHashMap.Builder<String, IPLocation>()
-        .initialCapacity(100000).maximumWeightedCapacity(100000).build();
+    /**
+     * 为true时默认实例和load(filepath)启动时把索引区解码到堆内，见DecodedIndex
+     */
+    public static final String DECODED_PROPERTY = "ipseeker.decoded";
 
-    private RandomAccessFile ipFile;
+    /**
+     * 查询缓存中/24表的槽位数
+     */
+    private static final int CACHE_CAPACITY = 1 << 17;
 
-    private MappedByteBuffer mbb;
+    /**
+     * 按记录的ip区间缓存查询结果，每个实例一份，不同的文件互不干扰。
+     * 只用来建倒排索引的实例为null
+     */
+    private final IntervalLocationCache ipCache;
 
-    private static ThreadLocal<IPSeeker> localInstance = new ThreadLocal<IPSeeker>();
+    /**
+     * 整个文件的只读映射，只做绝对位置的读取，不改变position，所以多个线程可以
+     * 同时查询同一个实例。为null表示文件打开失败
+     */
+    private final MappedByteBuffer mbb;
 
-    private int ipBegin;
+    private final int ipBegin;
 
-    private int ipEnd;
+    private final int ipEnd;
 
-    private byte[] tmpBuf;
+    private static final String ip_filename = "qqwry.dat";
 
-    private byte[] tmpB4;
+    /**
+     * 数据文件路径，classpath中没有纯真库时共享实例的为null
+     */
+    private final String filepath;
 
-    private static final String ip_filename = "qqwry.dat";
+    /**
+     * 解码到堆内的索引，为null时在映射文件上二分查找
+     */
+    private final DecodedIndex decodedIndex;
+
+    /**
+     * 按GBK字节记住解码过的国家、地区字符串，查询时懒填充。
+     * decoded模式下只在解码索引时使用，解码完即清空。
+     * 只用来建倒排索引的实例为null，每次都解码
+     */
+    private final GbkStringPool stringPool;
+
+    /**
+     * 地点倒排索引，按数据文件路径共享，懒加载，文件变化后重建
+     */
+    private static final ConcurrentHashMap<String, IPEntryIndex> entryIndexes = new ConcurrentHashMap<String, IPEntryIndex>();
 
     /**
      * 私有构造函数
      */
     private IPSeeker() {
-        tmpBuf = new byte[100];
-        tmpB4 = new byte[4];
+        this(resourcePath(), Boolean.getBoolean(DECODED_PROPERTY));
+    }
 
-        try {
-            String filepath = getClass().getClassLoader()
-                .getResource("qqwry.dat").getPath();
-            ipFile = new RandomAccessFile(filepath, "r");
-            // ipFile = new RandomAccessFile(ClassLoader.getSystemResource(
-            // ip_filename).getPath(), "r");
-        } catch (IOException e) {
-            logger.error("IP地址信息文件没有找到，IP显示功能将无法使用");
-            return;
+    /**
+     * @return classpath中纯真库文件的路径，找不到时返回null
+     */
+    private static String resourcePath() {
+        URL url = IPSeeker.class.getClassLoader().getResource(ip_filename);
+        if (url == null) {
+            logger.error("classpath中没有" + ip_filename + "，IP显示功能将无法使用");
+            return null;
         }
+        return url.getPath();
+    }
 
-        if (ipFile == null)
-            return;
+    private IPSeeker(String filepath, boolean decoded) {
+        this(filepath, decoded, true);
+    }
 
+    /**
+     * @param lookups
+     *            为false时只映射文件，不建查询缓存和字符串池，供扫描记录建倒排索引
+     */
+    private IPSeeker(String filepath, boolean decoded, boolean lookups) {
+        this.filepath = filepath;
+        ipCache = lookups ? new IntervalLocationCache(CACHE_CAPACITY) : null;
+        stringPool = lookups ? new GbkStringPool(1024) : null;
+        mbb = map(filepath);
         // 读取文件头信息
+        if (mbb != null) {
+            ipBegin = mbb.getInt(0);
+            ipEnd = mbb.getInt(4);
+        } else {
+            ipBegin = 0;
+            ipEnd = 0;
+        }
+        decodedIndex = decoded && mbb != null ? decodeIndex() : null;
+    }
+
+    /**
+     * 映射IP信息文件到内存中
+     * 
+     * @return 小端序的只读映射，出错或filepath为null时返回null
+     */
+    private static MappedByteBuffer map(String filepath) {
+        if (filepath == null)
+            return null;
+        RandomAccessFile ipFile;
         try {
-            ipBegin = readInt4(0);
-            ipEnd = readInt4(4);
-            if (ipBegin == -1 || ipEnd == -1) {
-                ipFile.close();
-                ipFile = null;
-                return;
-            }
+            ipFile = new RandomAccessFile(filepath, "r");
         } catch (IOException e) {
-            logger.error("IP地址信息文件格式有错误，IP显示功能将无法使用");
-            ipFile = null;
-            return;
+            logger.error("IP地址信息文件没有找到，IP显示功能将无法使用");
+            return null;
         }
 
-        // 映射IP信息文件到内存中
         try {
-            FileChannel fc = ipFile.getChannel();
             long ipFileLen = ipFile.length();
-            mbb = fc.map(FileChannel.MapMode.READ_ONLY, 0, ipFileLen);
+            if (ipFileLen < 8) {
+                logger.error("IP地址信息文件格式有错误，IP显示功能将无法使用");
+                return null;
+            }
+            MappedByteBuffer mbb = ipFile.getChannel().map(
+                FileChannel.MapMode.READ_ONLY, 0, ipFileLen);
+            // 映射建立后再发布实例，之后不再修改字节序
             mbb.order(ByteOrder.LITTLE_ENDIAN);
-            ipFile.close();
 
             logger
                 .info("read ip file to memory, len = " + ipFileLen + " bytes");
+            return mbb;
         } catch (IOException e) {
-            e.printStackTrace();
+            logger.error("IP地址信息文件映射失败，IP显示功能将无法使用", e);
+            return null;
+        } finally {
+            try {
+                ipFile.close(); // 映射在文件关闭后依然有效
+            } catch (IOException e) {
+                logger.warn(e.getMessage());
+            }
         }
     }
 
-    public static IPSeeker getInstance() {
-        IPSeeker instance = localInstance.get();
-        if (instance == null) {
-            instance = new IPSeeker();
-            localInstance.set(instance);
+    /**
+     * 打开指定的纯真库文件，与getInstance()的共享实例无关。
+     * 返回的实例线程安全，可以在多个线程间共享。
+     * 是否解码索引由系统属性ipseeker.decoded决定
+     */
+    public static IPSeeker load(String filepath) {
+        return load(filepath, Boolean.getBoolean(DECODED_PROPERTY));
+    }
+
+    /**
+     * 打开指定的纯真库文件
+     * 
+     * @param decoded
+     *            为true时把索引区解码到堆内，查询时不再读文件和解码字符串，
+     *            多占用每条记录12字节的内存
+     */
+    public static IPSeeker load(String filepath, boolean decoded) {
+        return new IPSeeker(filepath, decoded);
+    }
+
+    /**
+     * 线程安全的查询入口，第一次查询时才映射文件，
+     * 可以交给TieredIpLocator等在多个线程间共享
+     */
+    public static final IpLocator SHARED = new IpLocator() {
+        @Override
+        public IPLocation getIPLocation(String ip) {
+            return getInstance().getIPLocation(ip);
         }
-        return instance;
+    };
+
+    /**
+     * 懒加载的共享实例，由类加载保证只映射一次并安全发布
+     */
+    private static class Holder {
+        static final IPSeeker INSTANCE = new IPSeeker();
+    }
+
+    /**
+     * @return 所有线程共享的实例，查询不需要每个线程各自映射文件
+     */
+    public static IPSeeker getInstance() {
+        return Holder.INSTANCE;
     }
 
     /**
      * 根据ip查归属地
      */
+    @Override
     public IPLocation getIPLocation(String ip) {
-        byte[] ipBytes = getIpByteArrayFromString(ip); // 注：末位统一重置为0，以提高缓存命中率
-        String ipSeg = getIpStringFromBytes(ipBytes); // 形如123.58.181.0的/24网段
+        long ipLong = IPUtil.parseIPv4(ip);
+        if (ipLong < 0) {
+            logger.error("invalid ip: " + ip);
+            return IPLocation.getNullInstance();
+        }
+        int ipInt = (int) ipLong;
 
-        IPLocation loc = ipCacheMap.get(ipSeg);
+        IPLocation loc = ipCache.get(ipInt);
         if (loc == null) {
-            loc = getIPLocation(ipBytes);
-            ipCacheMap.put(ipSeg, loc);
+            IntervalLocationCache.Entry entry = seek(ipInt);
+            ipCache.put(ipInt, entry);
+            loc = entry.location;
         }
         return loc;
     }
 
     /**
-     * 根据地点查ip区间
+     * 根据地点查ip区间，返回国家或地区包含s子串的记录。
+     * 查询走懒加载的倒排索引(见IPEntryIndex)，不再逐条扫描整个文件
      */
     public List<IPEntry> getIPEntries(String s) {
-        List<IPEntry> ret = new ArrayList<IPEntry>();
+        if (filepath == null)
+            return new ArrayList<IPEntry>();
+        return getEntryIndex().find(s);
+    }
 
-        int endOffset = ipEnd;
-        for (int offset = ipBegin + 4; offset <= endOffset; offset += IP_RECORD_LENGTH) {
-            int temp = readInt3(offset);
-            if (temp != -1) {
-                IPLocation ipLoc = getIPLocation(temp);
-                // 判断是否这个地点里面包含了s子串，如果包含了，添加这个记录到List中，如果没有，继续
-                if (ipLoc.country.indexOf(s) != -1
-                    || ipLoc.area.indexOf(s) != -1) {
-                    IPEntry entry = new IPEntry();
-                    entry.country = ipLoc.country;
-                    entry.area = ipLoc.area;
-                    // 得到起始IP
-                    readIP(offset - 4, tmpB4);
-                    entry.beginIp = getIpStringFromBytes(tmpB4);
-                    // 得到结束IP
-                    readIP(temp, tmpB4);
-                    entry.endIp = getIpStringFromBytes(tmpB4);
-                    // 添加该记录
-                    ret.add(entry);
+    private IPEntryIndex getEntryIndex() {
+        IPEntryIndex index = entryIndexes.get(filepath);
+        if (index == null || index.isStale()) {
+            synchronized (entryIndexes) {
+                index = entryIndexes.get(filepath);
+                if (index == null || index.isStale()) {
+                    // 文件可能已被替换，用新的映射重建
+                    index = new IPSeeker(filepath, false, false)
+                        .buildEntryIndex();
+                    entryIndexes.put(filepath, index);
                 }
             }
         }
-        return ret;
+        return index;
     }
 
     /**
-     * 从内存映射文件的offset位置开始的3个字节读取一个int
-     * 
-     * @param offset
-     * @return
+     * 扫描所有记录建立地点倒排索引
      */
-    private int readInt3(int offset) {
-        mbb.position(offset);
-        return mbb.getInt() & 0x00FFFFFF;
+    private IPEntryIndex buildEntryIndex() {
+        StopWatch sw = new StopWatch();
+        sw.start();
+
+        IPEntryIndex.Builder builder = new IPEntryIndex.Builder();
+        if (mbb != null) {
+            int endOffset = ipEnd;
+            for (int offset = ipBegin + 4; offset <= endOffset; offset += IP_RECORD_LENGTH) {
+                int temp = readInt3(offset);
+                IPLocation ipLoc = getIPLocation(temp);
+                // 起始IP
+                int beginIp = readIP(offset - 4);
+                // 结束IP
+                int endIp = readIP(temp);
+                builder.add(beginIp, endIp, ipLoc.country, ipLoc.area);
+            }
+        }
+        IPEntryIndex index = builder.build(new File(filepath));
+
+        sw.stop();
+        logger.info("build entry index, records = " + index.size() + ", cost "
+            + sw.getTime() + "ms");
+        return index;
     }
 
     /**
-     * 从内存映射文件的当前位置开始的3个字节读取一个int
-     * 
-     * @return
+     * 解码所有索引记录，记录损坏时放弃解码，仍在映射文件上查找
      */
-    private int readInt3() {
-        return mbb.getInt() & 0x00FFFFFF;
+    private DecodedIndex decodeIndex() {
+        StopWatch sw = new StopWatch();
+        sw.start();
+
+        DecodedIndex index;
+        try {
+            int records = (ipEnd - ipBegin) / IP_RECORD_LENGTH + 1;
+            DecodedIndex.Builder builder = new DecodedIndex.Builder(records);
+            for (int offset = ipBegin; offset <= ipEnd; offset += IP_RECORD_LENGTH) {
+                int temp = readInt3(offset + 4);
+                builder.add(readIP(offset), readIP(temp), getIPLocation(temp));
+            }
+            index = builder.build();
+        } catch (RuntimeException e) {
+            logger.error("decode index failed, search the mapped file", e);
+            stringPool.clear();
+            return null;
+        }
+
+        sw.stop();
+        logger.info("decode index, records = " + index.size()
+            + ", locations = " + index.locationCount() + ", strings = "
+            + stringPool.size() + ", cost "
+            + sw.getTime() + "ms");
+        // 查询不再读字符串，地点已在索引里
+        stringPool.clear();
+        return index;
     }
 
     /**
-     * 根据ip搜索ip信息文件，得到IPLocation结构，所搜索的ip参数从类成员ip中得到
+     * 从内存映射文件的offset位置开始的3个字节读取一个int
      * 
-     * @param ip
-     *            要查询的IP
-     * @return IPLocation结构
+     * @param offset
+     * @return
      */
-    private IPLocation getIPLocation(byte[] ip) {
-        IPLocation loc = null;
-        int offset = locateIP(ip);
-        if (offset != -1)
-            loc = getIPLocation(offset);
-        if (loc == null) {
-            loc = new IPLocation();
-            loc.country = IPLocation.UNKNOWN_COUNTRY;
-            loc.area = IPLocation.UNKNOWN_AREA;
-        }
-        return loc;
+    private int readInt3(int offset) {
+        // 逐字节读，文件最后3个字节也不会越界
+        return (mbb.get(offset) & 0xFF) | (mbb.get(offset + 1) & 0xFF) << 8
+            | (mbb.get(offset + 2) & 0xFF) << 16;
     }
 
     /**
-     * 从offset位置读取4个字节为一个long，因为java为big-endian格式，所以没办法 用了这么一个函数来做转换
+     * 根据ip搜索ip信息文件，得到包含ip的记录的区间和IPLocation结构
      * 
-     * @param offset
-     * @return 读取的long值，返回-1表示读取文件失败
+     * @param ip
+     *            要查询的IP，big-endian的int形式
+     * @return 包含ip的记录；不在任何记录中时为所在的空隙，
+     *         地点为IPLocation.getNullInstance()
      */
-    private int readInt4(int offset) {
-        if (ipFile == null)
-            return -1;
-
-        int ret = 0;
-        try {
-            ipFile.seek(offset);
-            ret |= (ipFile.readByte() & 0xFF);
-            ret |= ((ipFile.readByte() << 8) & 0xFF00);
-            ret |= ((ipFile.readByte() << 16) & 0xFF0000);
-            ret |= ((ipFile.readByte() << 24) & 0xFF000000);
-            return ret;
-        } catch (IOException e) {
-            return -1;
+    private IntervalLocationCache.Entry seek(int ip) {
+        if (mbb == null)
+            return new IntervalLocationCache.Entry(0, -1,
+                IPLocation.getNullInstance());
+        if (decodedIndex != null)
+            return decodedIndex.find(ip);
+        int index = locateIP(ip);
+        if (index != -1) {
+            int offset = readInt3(index + 4);
+            int endIp = readIP(offset);
+            if (compareIP(ip, endIp) <= 0)
+                return new IntervalLocationCache.Entry(readIP(index), endIp,
+                    getIPLocation(offset));
         }
+        // 空隙为前一条记录之后到后一条记录之前
+        int gapBegin = index != -1 ? readIP(readInt3(index + 4)) + 1 : 0;
+        int next = index != -1 ? index + IP_RECORD_LENGTH : ipBegin;
+        int gapEnd = next <= ipEnd ? readIP(next) - 1 : -1;
+        return new IntervalLocationCache.Entry(gapBegin, gapEnd,
+            IPLocation.getNullInstance());
     }
 
     /**
-     * 从offset位置读取四个字节的ip地址放入ip数组中，读取后的ip为big-endian格式，但是
-     * 文件中是little-endian形式，将会进行转换
+     * 从offset位置读取四个字节的ip地址，文件中是little-endian形式，按映射的字节序
+     * 读出来就是ip的int值
      * 
      * @param offset
-     * @param ip
+     * @return big-endian的int形式的ip
      */
-    private void readIP(int offset, byte[] ip) {
-        mbb.position(offset);
-        mbb.get(ip);
-        byte temp = ip[0];
-        ip[0] = ip[3];
-        ip[3] = temp;
-        temp = ip[1];
-        ip[1] = ip[2];
-        ip[2] = temp;
+    private int readIP(int offset) {
+        return mbb.getInt(offset);
     }
 
     /**
-     * 把类成员ip和beginIp比较，注意这个beginIp是big-endian的
+     * 把两个ip当作无符号数进行比较
      * 
      * @param ip
      *            要查询的IP
@@ -275,89 +411,32 @@ public class IPSeeker {
      *            和被查询IP相比较的IP
      * @return 相等返回0，ip大于beginIp则返回1，小于返回-1。
      */
-    private int compareIP(byte[] ip, byte[] beginIp) {
-        for (int i = 0; i < 4; i++) {
-            int r = compareByte(ip[i], beginIp[i]);
-            if (r != 0)
-                return r;
-        }
-        return 0;
-    }
-
-    /**
-     * 把两个byte当作无符号数进行比较
-     * 
-     * @param b1
-     * @param b2
-     * @return 若b1大于b2则返回1，相等返回0，小于返回-1
-     */
-    private int compareByte(byte b1, byte b2) {
-        if ((b1 & 0xFF) > (b2 & 0xFF)) // 比较是否大于
-            return 1;
-        else if ((b1 ^ b2) == 0)// 判断是否相等
+    private static int compareIP(int ip, int beginIp) {
+        if (ip == beginIp)
             return 0;
-        else
-            return -1;
+        // 翻转符号位后按有符号数比较
+        return (ip ^ 0x80000000) > (beginIp ^ 0x80000000) ? 1 : -1;
     }
 
     /**
-     * 这个方法将根据ip的内容，定位到包含这个ip国家地区的记录处，返回一个绝对偏移 方法使用二分法查找。
+     * 在索引区二分查找起始ip不大于ip的最后一条索引记录，ip是否在这条记录的区间内
+     * 还要由调用者与记录的结束ip比较
      * 
      * @param ip
      *            要查询的IP
-     * @return 如果找到了，返回结束IP的偏移，如果没有找到，返回-1
+     * @return 索引记录的绝对偏移，ip小于第一条记录的起始ip时返回-1
      */
-    private int locateIP(byte[] ip) {
-        int m = 0;
-        int r;
-        // 比较第一个ip项
-        readIP(ipBegin, tmpB4);
-        r = compareIP(ip, tmpB4);
-        if (r == 0)
-            return ipBegin;
-        else if (r < 0)
-            return -1;
-        // 开始二分搜索
-        for (int i = ipBegin, j = ipEnd; i < j;) {
-            m = getMiddleOffset(i, j);
-            readIP(m, tmpB4);
-            r = compareIP(ip, tmpB4);
-            // log.debug(Utils.getIpStringFromBytes(b));
-            if (r > 0)
-                i = m;
-            else if (r < 0) {
-                if (m == j) {
-                    j -= IP_RECORD_LENGTH;
-                    m = j;
-                } else
-                    j = m;
-            } else
-                return readInt3(m + 4);
+    private int locateIP(int ip) {
+        int lo = 0;
+        int hi = (ipEnd - ipBegin) / IP_RECORD_LENGTH;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (compareIP(readIP(ipBegin + mid * IP_RECORD_LENGTH), ip) <= 0)
+                lo = mid + 1;
+            else
+                hi = mid - 1;
         }
-        // 如果循环结束了，那么i和j必定是相等的，这个记录为最可能的记录，但是并非
-        // 肯定就是，还要检查一下，如果是，就返回结束地址区的绝对偏移
-        m = readInt3(m + 4);
-        readIP(m, tmpB4);
-        r = compareIP(ip, tmpB4);
-        if (r <= 0)
-            return m;
-        else
-            return -1;
-    }
-
-    /**
-     * 得到begin偏移和end偏移中间位置记录的偏移
-     * 
-     * @param begin
-     * @param end
-     * @return
-     */
-    private int getMiddleOffset(int begin, int end) {
-        int records = (end - begin) / IP_RECORD_LENGTH;
-        records >>= 1;
-        if (records == 0)
-            records = 1;
-        return begin + records * IP_RECORD_LENGTH;
+        return hi < 0 ? -1 : ipBegin + hi * IP_RECORD_LENGTH;
     }
 
     /**
@@ -368,33 +447,34 @@ public class IPSeeker {
      * @return IPLocation对象
      */
     private IPLocation getIPLocation(int offset) {
-        IPLocation loc = new IPLocation();
+        String country;
+        String area;
         // 跳过4字节ip
-        mbb.position(offset + 4);
+        int pos = offset + 4;
         // 读取第一个字节判断是否标志字节
-        byte b = mbb.get();
+        byte b = mbb.get(pos);
         if (b == REDIRECT_MODE_1) {
             // 读取国家偏移
-            int countryOffset = readInt3();
-            // 跳转至偏移处
-            mbb.position(countryOffset);
+            int countryOffset = readInt3(pos + 1);
             // 再检查一次标志字节，因为这个时候这个地方仍然可能是个重定向
-            b = mbb.get();
+            b = mbb.get(countryOffset);
             if (b == REDIRECT_MODE_2) {
-                loc.country = readString(readInt3());
-                mbb.position(countryOffset + 4);
-            } else
-                loc.country = readString(countryOffset);
+                country = readString(readInt3(countryOffset + 1));
+                pos = countryOffset + 4;
+            } else {
+                country = readString(countryOffset);
+                pos = skipString(countryOffset);
+            }
             // 读取地区标志
-            loc.area = readArea(mbb.position());
+            area = readArea(pos);
         } else if (b == REDIRECT_MODE_2) {
-            loc.country = readString(readInt3());
-            loc.area = readArea(offset + 8);
+            country = readString(readInt3(pos + 1));
+            area = readArea(offset + 8);
         } else {
-            loc.country = readString(mbb.position() - 1);
-            loc.area = readArea(mbb.position());
+            country = readString(pos);
+            area = readArea(skipString(pos));
         }
-        return loc;
+        return new IPLocation(country, area);
     }
 
     /**
@@ -403,10 +483,9 @@ public class IPSeeker {
      * @return 地区名字符串
      */
     private String readArea(int offset) {
-        mbb.position(offset);
-        byte b = mbb.get();
+        byte b = mbb.get(offset);
         if (b == REDIRECT_MODE_1 || b == REDIRECT_MODE_2) {
-            int areaOffset = readInt3();
+            int areaOffset = readInt3(offset + 1);
             if (areaOffset == 0)
                 return IPLocation.UNKNOWN_AREA;
             else
@@ -416,7 +495,7 @@ public class IPSeeker {
     }
 
     /**
-     * 从内存映射文件的offset位置得到一个0结尾字符串
+     * 从内存映射文件的offset位置得到一个0结尾字符串，相同的字符串只解码一次
      * 
      * @param offset
      *            字符串起始偏移
@@ -424,54 +503,37 @@ public class IPSeeker {
      */
     private String readString(int offset) {
         try {
-            mbb.position(offset);
-            int i;
-            for (i = 0, tmpBuf[i] = mbb.get(); tmpBuf[i] != 0; tmpBuf[++i] = mbb
-                .get());
-            if (i != 0)
-                return getString(tmpBuf, 0, i, "GBK");
-        } catch (IllegalArgumentException e) {
+            int len = skipString(offset) - 1 - offset;
+            if (len != 0) {
+                String s = stringPool != null ? stringPool.get(mbb, offset,
+                    len) : null;
+                if (s == null) {
+                    byte[] buf = new byte[len];
+                    for (int i = 0; i < len; i++) {
+                        buf[i] = mbb.get(offset + i);
+                    }
+                    s = getString(buf, 0, len, "GBK");
+                    if (stringPool != null)
+                        s = stringPool.putIfAbsent(buf, s);
+                }
+                return s;
+            }
+        } catch (IndexOutOfBoundsException e) {
             logger.error(e.getMessage());
         }
         return "";
     }
 
     /**
-     * @param ip
-     *            ip的字节数组形式
-     * @return 字符串形式的ip
-     */
-    private static String getIpStringFromBytes(byte[] ip) {
-        StringBuilder sb = new StringBuilder();
-        sb.append(ip[0] & 0xFF);
-        sb.append('.');
-        sb.append(ip[1] & 0xFF);
-        sb.append('.');
-        sb.append(ip[2] & 0xFF);
-        sb.append('.');
-        sb.append(ip[3] & 0xFF);
-        return sb.toString();
-    }
-
-    /**
-     * 从ip的字符串形式得到字节数组形式
-     * 
-     * @param ip
-     *            字符串形式的ip
-     * @return 字节数组形式的ip
+     * @param offset
+     *            字符串起始偏移
+     * @return 0结尾字符串之后的偏移
      */
-    private static byte[] getIpByteArrayFromString(String ip) {
-        byte[] ret = new byte[4];
-        StringTokenizer st = new StringTokenizer(ip, ".");
-        try {
-            ret[0] = (byte) (Integer.parseInt(st.nextToken()) & 0xFF);
-            ret[1] = (byte) (Integer.parseInt(st.nextToken()) & 0xFF);
-            ret[2] = (byte) (Integer.parseInt(st.nextToken()) & 0xFF);
-            ret[3] = 0; // [!] 末位统一置0，相同/24网段的ip视为同一个，提高缓存命中率
-        } catch (Exception e) {
-            logger.error(e.getMessage());
+    private int skipString(int offset) {
+        while (mbb.get(offset) != 0) {
+            offset++;
         }
-        return ret;
+        return offset + 1;
     }
 
     /**
@@ -509,11 +571,8 @@ public class IPSeeker {
             IPLocation ipl = ips.getIPLocation(String.valueOf(rand.nextInt()));
         }
         System.out.println(sw.getTime() + "ms");
-        System.out.println(IPSeeker.ipCacheMap.size());
-
-        while (true) {
-            Thread.sleep(1);
-        }
+        System.out.println(IPSeeker.getInstance().ipCache.size());
+        // 多线程的吞吐和延迟见测试代码中的org.lic.ip.benchmark.ScalabilityBenchmark
     }
 
     public static void main(String[] args) throws Exception {
@@ -531,12 +590,8 @@ public class IPSeeker {
             System.out.println(ip + " [" + ipl.country + " " + ipl.area + "]");
         }
 
-        System.out.println("\r\ncache: " + IPSeeker.ipCacheMap.size());
-        for (Map.Entry<String, IPLocation> entry: IPSeeker.ipCacheMap
-            .entrySet()) {
-            System.out.println(entry.getKey() + " [" + entry.getValue().country
-                + " " + entry.getValue().area + "]");
-        }
+        System.out.println("\r\ncache: " + ips.ipCache.size() + ", /24 slots: "
+            + ips.ipCache.capacity());
 
         // benchmark();
     }
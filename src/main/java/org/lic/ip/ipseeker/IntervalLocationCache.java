@@ -0,0 +1,118 @@
+package org.lic.ip.ipseeker;
+
+import org.lic.ip.iplocator.IPLocation;
+
+/**
+ * <pre>
+ * IPSeeker.getIPLocation的查询缓存，缓存的是命中记录的整个ip区间[begin, end]及其地点，
+ * 区间内的任何ip都命中，结果与直接查文件完全一致，不再把ip末位置0。
+ * 两张表，都是直接映射，新值直接覆盖旧值，容量固定：
+ * 覆盖整个/16网段的区间放在按/16下标的表中，每个/16一个槽位，大段的记录只占一项；
+ * 其余区间放在按/24网段散列的表中，槽位里的区间可能属于别的网段，取出后按区间确认。
+ * 槽位里是不可变的Entry，读写都不加锁：并发写同一槽位时后写的覆盖先写的，
+ * 读到的总是某个完整的Entry(final字段保证)，最坏情况是多查一次文件。
+ * 命中时不分配任何对象。
+ * </pre>
+ */
+class IntervalLocationCache {
+
+    /**
+     * 一条记录或两条记录之间空隙的ip区间及其地点
+     */
+    static final class Entry {
+        /** 翻转了符号位的起始ip和结束ip，可以按有符号数比较 */
+        private final int begin;
+
+        private final int end;
+
+        final IPLocation location;
+
+        /**
+         * @param begin
+         *            起始ip，big-endian的int形式
+         * @param end
+         *            结束ip，含
+         */
+        Entry(int begin, int end, IPLocation location) {
+            this.begin = begin ^ Integer.MIN_VALUE;
+            this.end = end ^ Integer.MIN_VALUE;
+            this.location = location;
+        }
+
+        boolean contains(int ip) {
+            int key = ip ^ Integer.MIN_VALUE;
+            return begin <= key && key <= end;
+        }
+    }
+
+    /** 按/16下标，只放覆盖整个/16的区间 */
+    private final Entry[] wide = new Entry[1 << 16];
+
+    /** 按/24散列 */
+    private final Entry[] narrow;
+
+    private final int mask;
+
+    /**
+     * @param capacity
+     *            /24表的槽位数，向上取整为2的幂
+     */
+    IntervalLocationCache(int capacity) {
+        int n = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+        narrow = new Entry[n];
+        mask = n - 1;
+    }
+
+    private int slot(int ip) {
+        int h = (ip >>> 8) * 0x9e3779b9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    /**
+     * @return 包含ip的缓存区间的地点，没有返回null
+     */
+    IPLocation get(int ip) {
+        // 只放覆盖整个/16的区间，不用再确认
+        Entry e = wide[ip >>> 16];
+        if (e != null)
+            return e.location;
+        e = narrow[slot(ip)];
+        return e != null && e.contains(ip) ? e.location : null;
+    }
+
+    /**
+     * 缓存查询ip得到的区间
+     * 
+     * @param entry
+     *            包含ip的区间
+     */
+    void put(int ip, Entry entry) {
+        if (entry.contains(ip & 0xFFFF0000) && entry.contains(ip | 0xFFFF))
+            wide[ip >>> 16] = entry;
+        else
+            narrow[slot(ip)] = entry;
+    }
+
+    /**
+     * @return /24表的槽位数
+     */
+    int capacity() {
+        return narrow.length;
+    }
+
+    /**
+     * @return 两张表已占用的槽位数，逐个扫描，仅供统计
+     */
+    int size() {
+        int n = 0;
+        for (Entry e: wide) {
+            if (e != null)
+                n++;
+        }
+        for (Entry e: narrow) {
+            if (e != null)
+                n++;
+        }
+        return n;
+    }
+}
@@ -27,6 +27,156 @@ public class IPUtil {
         return ret;
     }
 
+    // Parse dotted IPv4 address to integer without allocation, -1 if malformed.
+    public static long parseIPv4(String ip) {
+        if (ip == null) {
+            return -1L;
+        }
+        return parseIPv4(ip, 0, ip.length());
+    }
+
+    // Parse the dotted IPv4 address in ip[from, to), -1 if malformed.
+    public static long parseIPv4(CharSequence ip, int from, int to) {
+        int len = to - from;
+        if (len < 7 || len > 15) {
+            return -1L;
+        }
+        long ret = 0;
+        int octet = 0;
+        int digits = 0;
+        int dots = 0;
+        for (int i=from; i<to; i++) {
+            char c = ip.charAt(i);
+            if (c >= '0' && c <= '9') {
+                octet = octet * 10 + (c - '0');
+                if (++digits > 3 || octet > 255) {
+                    return -1L;
+                }
+            } else if (c == '.') {
+                if (digits == 0 || ++dots > 3) {
+                    return -1L;
+                }
+                ret = ret << 8 | octet;
+                octet = 0;
+                digits = 0;
+            } else {
+                return -1L;
+            }
+        }
+        if (digits == 0 || dots != 3) {
+            return -1L;
+        }
+        return ret << 8 | octet;
+    }
+
+    // Parse IPv6 address (with "::" and trailing dotted IPv4 forms) without
+    // allocation: high and low 64 bits go to out[0] and out[1].
+    // Returns false if malformed, out is then undefined.
+    public static boolean parseIPv6(String ip, long[] out) {
+        if (ip == null) {
+            return false;
+        }
+        return parseIPv6(ip, 0, ip.length(), out);
+    }
+
+    // Parse the IPv6 address in ip[from, to), see parseIPv6(String, long[]).
+    public static boolean parseIPv6(CharSequence ip, int from, int to, long[] out) {
+        if (to - from < 2 || to - from > 45) {
+            return false;
+        }
+        long hi = 0, lo = 0;         // groups of the current part, right-aligned
+        long headHi = 0, headLo = 0; // groups before "::"
+        int groups = 0;
+        int headGroups = -1;         // -1 until "::" is seen
+        int i = from;
+        if (ip.charAt(i) == ':') {
+            if (ip.charAt(i + 1) != ':') {
+                return false;
+            }
+            headGroups = 0;
+            i += 2;
+        }
+        while (i < to) {
+            int start = i;
+            int group = 0;
+            while (i < to) {
+                int d = hexDigit(ip.charAt(i));
+                if (d < 0) {
+                    break;
+                }
+                group = group << 4 | d;
+                if (++i - start > 4) {
+                    return false;
+                }
+            }
+            if (i < to && ip.charAt(i) == '.') {
+                // trailing dotted IPv4, two groups
+                long v4 = parseIPv4(ip, start, to);
+                if (v4 < 0 || groups + Math.max(headGroups, 0) > 6) {
+                    return false;
+                }
+                hi = hi << 32 | lo >>> 32;
+                lo = lo << 32 | v4;
+                groups += 2;
+                break;
+            }
+            if (i == start || groups + Math.max(headGroups, 0) >= 8) {
+                return false;
+            }
+            hi = hi << 16 | lo >>> 48;
+            lo = lo << 16 | group;
+            groups++;
+            if (i == to) {
+                break;
+            }
+            if (ip.charAt(i) != ':' || ++i == to) {
+                return false;
+            }
+            if (ip.charAt(i) == ':') {
+                if (headGroups >= 0) {
+                    return false;
+                }
+                headGroups = groups;
+                headHi = hi;
+                headLo = lo;
+                hi = lo = groups = 0;
+                i++;
+            }
+        }
+
+        if (headGroups < 0) {
+            if (groups != 8) {
+                return false;
+            }
+            out[0] = hi;
+            out[1] = lo;
+            return true;
+        }
+        if (headGroups + groups > 7) {
+            return false;
+        }
+        for (int shift = headGroups; shift < 8; shift++) {
+            headHi = headHi << 16 | headLo >>> 48;
+            headLo = headLo << 16;
+        }
+        out[0] = headHi | hi;
+        out[1] = headLo | lo;
+        return true;
+    }
+
+    private static int hexDigit(char c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        }
+        if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        }
+        if (c >= 'A' && c <= 'F') {
+            return c - 'A' + 10;
+        }
+        return -1;
+    }
+
     // Convert 32-bit integer to dotted IPv4 address.
     public static String ipLong2String(long lip) {
         String s1 = String.valueOf(lip >> 24 & 0xFF);
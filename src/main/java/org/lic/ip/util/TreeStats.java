@@ -0,0 +1,272 @@
+package org.lic.ip.util;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Shape and memory footprint of an IPv4 radix tree, as reported by the
+ * getStats() methods of the trees: node and prefix counts, both per depth,
+ * the capacity allocated beyond the nodes in use, and the bytes of each
+ * backing array and of the value dictionary.
+ *
+ * Byte counts follow the layout of a 64-bit HotSpot JVM with compressed oops,
+ * the default below 32GB of heap: 12-byte object headers, 16-byte array
+ * headers, 4-byte references and 8-byte alignment. A string is counted as its
+ * String object and its UTF-16 char array.
+ */
+public class TreeStats {
+
+    public static final int MAX_DEPTH = 32;
+
+    public static final int OBJECT_HEADER_BYTES = 12;
+
+    public static final int ARRAY_HEADER_BYTES = 16;
+
+    public static final int REFERENCE_BYTES = 4;
+
+    /** String object: its char array and its cached hash. */
+    private static final int STRING_BYTES = align(OBJECT_HEADER_BYTES
+        + REFERENCE_BYTES + 4);
+
+    private final int nodes;
+
+    private final int allocatedNodes;
+
+    private final int[] nodesPerDepth;
+
+    private final int[] prefixesPerDepth;
+
+    private final int prefixes;
+
+    private final Map<String, Long> arrayBytes;
+
+    private final long slackBytes;
+
+    private final long dictionaryBytes;
+
+    private TreeStats(Builder builder) {
+        nodes = builder.nodes;
+        allocatedNodes = builder.allocatedNodes;
+        nodesPerDepth = builder.nodesPerDepth.clone();
+        prefixesPerDepth = builder.prefixesPerDepth.clone();
+        int n = 0;
+        for (int count: prefixesPerDepth) {
+            n += count;
+        }
+        prefixes = n;
+        arrayBytes = Collections.unmodifiableMap(new LinkedHashMap<String, Long>(
+            builder.arrayBytes));
+        slackBytes = builder.slackBytes;
+        dictionaryBytes = builder.dictionaryBytes;
+    }
+
+    private static int align(long bytes) {
+        return (int) ((bytes + 7) & ~7L);
+    }
+
+    /**
+     * @return bytes of an array
+     */
+    public static long arrayBytes(long length, int elementBytes) {
+        return (ARRAY_HEADER_BYTES + length * elementBytes + 7) & ~7L;
+    }
+
+    /**
+     * @return bytes of a plain object with the given bytes of fields
+     */
+    public static long objectBytes(int fieldBytes) {
+        return align(OBJECT_HEADER_BYTES + fieldBytes);
+    }
+
+    /**
+     * @return bytes of a string, 0 for null
+     */
+    public static long stringBytes(String s) {
+        return s == null ? 0 : STRING_BYTES + arrayBytes(s.length(), 2);
+    }
+
+    /**
+     * @return number of nodes in use, the root included
+     */
+    public int getNodes() {
+        return nodes;
+    }
+
+    /**
+     * @return number of nodes the node arrays have room for
+     */
+    public int getAllocatedNodes() {
+        return allocatedNodes;
+    }
+
+    /**
+     * @return number of allocated nodes not in use
+     */
+    public int getSlackNodes() {
+        return allocatedNodes - nodes;
+    }
+
+    /**
+     * @return number of nodes holding a value
+     */
+    public int getPrefixes() {
+        return prefixes;
+    }
+
+    /**
+     * @return number of nodes at a depth, i.e. the root at 0 and the /24
+     *         networks at 24
+     */
+    public int getNodesAtDepth(int depth) {
+        return nodesPerDepth[depth];
+    }
+
+    /**
+     * @return number of nodes holding a value at a depth, i.e. the number of
+     *         prefixes of that length
+     */
+    public int getPrefixesAtDepth(int depth) {
+        return prefixesPerDepth[depth];
+    }
+
+    /**
+     * @return bytes of each backing array by name, in the order the tree
+     *         reported them
+     */
+    public Map<String, Long> getArrayBytes() {
+        return arrayBytes;
+    }
+
+    /**
+     * @return bytes of the allocated array elements not in use
+     */
+    public long getSlackBytes() {
+        return slackBytes;
+    }
+
+    /**
+     * @return bytes of the value dictionary: its arrays and the objects they
+     *         hold
+     */
+    public long getDictionaryBytes() {
+        return dictionaryBytes;
+    }
+
+    /**
+     * @return bytes of the node arrays and of the dictionary
+     */
+    public long getTotalBytes() {
+        long total = dictionaryBytes;
+        for (Map.Entry<String, Long> e: arrayBytes.entrySet()) {
+            if (!e.getKey().startsWith(Builder.DICTIONARY_PREFIX))
+                total += e.getValue();
+        }
+        return total;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("nodes: ").append(nodes).append(" (allocated ")
+            .append(allocatedNodes).append(", slack ")
+            .append(getSlackNodes()).append(")\n");
+        sb.append("prefixes: ").append(prefixes).append('\n');
+        sb.append("depth\tnodes\tprefixes\n");
+        for (int depth = 0; depth <= MAX_DEPTH; depth++) {
+            if (nodesPerDepth[depth] > 0)
+                sb.append(depth).append('\t').append(nodesPerDepth[depth])
+                    .append('\t').append(prefixesPerDepth[depth]).append('\n');
+        }
+        for (Map.Entry<String, Long> e: arrayBytes.entrySet()) {
+            sb.append(e.getKey()).append(": ").append(e.getValue())
+                .append(" bytes\n");
+        }
+        sb.append("dictionary: ").append(dictionaryBytes).append(" bytes\n");
+        sb.append("total: ").append(getTotalBytes()).append(" bytes (slack ")
+            .append(slackBytes).append(" bytes)");
+        return sb.toString();
+    }
+
+    /**
+     * Collects the statistics while a tree walks its nodes and arrays.
+     */
+    public static class Builder {
+        static final String DICTIONARY_PREFIX = "dictionary.";
+
+        private final int nodes;
+
+        private final int allocatedNodes;
+
+        private final int[] nodesPerDepth = new int[MAX_DEPTH + 1];
+
+        private final int[] prefixesPerDepth = new int[MAX_DEPTH + 1];
+
+        private final Map<String, Long> arrayBytes = new LinkedHashMap<String, Long>();
+
+        private long slackBytes;
+
+        private long dictionaryBytes;
+
+        /**
+         * @param nodes
+         *            number of nodes in use
+         * @param allocatedNodes
+         *            number of nodes the node arrays have room for
+         */
+        public Builder(int nodes, int allocatedNodes) {
+            this.nodes = nodes;
+            this.allocatedNodes = allocatedNodes;
+        }
+
+        /**
+         * Counts a node reached by the walk.
+         */
+        public Builder node(int depth, boolean hasValue) {
+            nodesPerDepth[depth]++;
+            if (hasValue)
+                prefixesPerDepth[depth]++;
+            return this;
+        }
+
+        /**
+         * Adds a backing array of the tree.
+         *
+         * @param length
+         *            length of the array
+         * @param used
+         *            number of elements in use, the others being slack
+         */
+        public Builder array(String name, int length, int used,
+            int elementBytes) {
+            arrayBytes.put(name, arrayBytes(length, elementBytes));
+            slackBytes += (long) (length - used) * elementBytes;
+            return this;
+        }
+
+        /**
+         * Adds an array of the value dictionary, counted in the dictionary
+         * bytes.
+         */
+        public Builder dictionaryArray(String name, int length, int used,
+            int elementBytes) {
+            long bytes = arrayBytes(length, elementBytes);
+            arrayBytes.put(DICTIONARY_PREFIX + name, bytes);
+            slackBytes += (long) (length - used) * elementBytes;
+            dictionaryBytes += bytes;
+            return this;
+        }
+
+        /**
+         * Adds the objects held by the dictionary arrays.
+         */
+        public Builder dictionaryObjects(long bytes) {
+            dictionaryBytes += bytes;
+            return this;
+        }
+
+        public TreeStats build() {
+            return new TreeStats(this);
+        }
+    }
+}
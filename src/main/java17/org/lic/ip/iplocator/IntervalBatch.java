@@ -0,0 +1,43 @@
+package org.lic.ip.iplocator;
+
+/**
+ * Batch search of an {@link IntervalTable}, Java 17 version: delegates to
+ * {@link VectorIntervalSearch} when the jdk.incubator.vector module has been
+ * added to the runtime (--add-modules jdk.incubator.vector) and the hardware
+ * has vectors of at least 8 ints, e.g. AVX2. Otherwise, or with
+ * -Diplocator.vector=false, this is the same plain loop as the portable
+ * version.
+ */
+final class IntervalBatch {
+
+    private static final boolean VECTORIZED = vectorApiUsable();
+
+    private IntervalBatch() {
+    }
+
+    static boolean isVectorized() {
+        return VECTORIZED;
+    }
+
+    static void getAll(int[] ends, short[] ids, int n, int[] ips, int[] outIds) {
+        if (VECTORIZED) {
+            VectorIntervalSearch.getAll(ends, ids, n, ips, outIds);
+            return;
+        }
+        for (int i = 0; i < ips.length; i++) {
+            outIds[i] = IntervalTable.search(ends, ids, n, ips[i]);
+        }
+    }
+
+    private static boolean vectorApiUsable() {
+        if (!Boolean.parseBoolean(System.getProperty("iplocator.vector", "true")))
+            return false;
+        if (ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty())
+            return false;
+        try {
+            return VectorIntervalSearch.lanes() >= 8;
+        } catch (LinkageError e) {
+            return false;
+        }
+    }
+}
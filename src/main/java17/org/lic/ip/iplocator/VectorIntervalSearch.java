@@ -0,0 +1,68 @@
+package org.lic.ip.iplocator;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Eytzinger descent of {@link IntervalTable} for one vector of keys at a
+ * time: every step gathers the range ends of all the lanes and compares them
+ * with the keys in one instruction each, then shifts the lane indexes left
+ * and adds the comparison mask, exactly like the scalar loop does per key.
+ *
+ * The first floor(log2(n)) levels of the implicit tree are full, so all the
+ * lanes take these steps; the last, partial level is one blended step for
+ * the lanes still inside the table. The backing up to the answer and the id
+ * loads are scalar. Only loaded when jdk.incubator.vector is present, see
+ * {@link IntervalBatch}.
+ */
+final class VectorIntervalSearch {
+
+    private static final VectorSpecies<Integer> SPECIES = IntVector.SPECIES_PREFERRED;
+
+    private static final int BIAS = 0x80000000;
+
+    private VectorIntervalSearch() {
+    }
+
+    static int lanes() {
+        return SPECIES.length();
+    }
+
+    static void getAll(int[] ends, short[] ids, int n, int[] ips, int[] outIds) {
+        int lanes = SPECIES.length();
+        int levels = 31 - Integer.numberOfLeadingZeros(n);
+        int[] ks = new int[lanes];
+        IntVector one = IntVector.broadcast(SPECIES, 1);
+
+        int i = 0;
+        for (; i <= ips.length - lanes; i += lanes) {
+            IntVector x = IntVector.fromArray(SPECIES, ips, i).lanewise(
+                VectorOperators.XOR, BIAS);
+            IntVector k = one;
+            for (int level = 0; level < levels; level++) {
+                k.intoArray(ks, 0);
+                IntVector e = IntVector.fromArray(SPECIES, ends, 0, ks, 0);
+                k = k.lanewise(VectorOperators.LSHL, 1).add(1,
+                    e.compare(VectorOperators.LT, x));
+            }
+
+            VectorMask<Integer> inside = k.compare(VectorOperators.LE, n);
+            k.min(n).intoArray(ks, 0);
+            IntVector e = IntVector.fromArray(SPECIES, ends, 0, ks, 0);
+            k = k.blend(k.lanewise(VectorOperators.LSHL, 1).add(1,
+                e.compare(VectorOperators.LT, x)), inside);
+
+            k.intoArray(ks, 0);
+            for (int j = 0; j < lanes; j++) {
+                int kj = ks[j];
+                kj >>>= Integer.numberOfTrailingZeros(~kj) + 1;
+                outIds[i + j] = ids[kj] & 0xffff;
+            }
+        }
+        for (; i < ips.length; i++) {
+            outIds[i] = IntervalTable.search(ends, ids, n, ips[i]);
+        }
+    }
+}
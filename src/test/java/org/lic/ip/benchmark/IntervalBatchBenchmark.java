@@ -0,0 +1,64 @@
+package org.lic.ip.benchmark;
+
+import org.lic.ip.iplocator.IPv4RadixIntTree;
+import org.lic.ip.iplocator.IntervalTable;
+
+import java.util.Random;
+
+/**
+ * Compares the throughput of single lookups ({@link IntervalTable#getId})
+ * with batch lookups ({@link IntervalTable#getAll}) over random addresses,
+ * and checks that both give the same ids. The batch path is vectorized when
+ * running the jar on Java 17+ with the incubator module; the benchmarks are
+ * test sources, so target/test-classes goes on the class path too:
+ *
+ * <pre>
+ * java --add-modules jdk.incubator.vector \
+ *     -cp target/ip-locator-1.0-SNAPSHOT.jar:target/test-classes:... \
+ *     org.lic.ip.benchmark.IntervalBatchBenchmark [ipdb file] [addresses] [rounds]
+ * </pre>
+ *
+ * Without an ipdb file the shared tree is used.
+ */
+public class IntervalBatchBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        IPv4RadixIntTree tree = args.length > 0 ? IPv4RadixIntTree
+            .load(args[0]) : IPv4RadixIntTree.getInstance();
+        int n = args.length > 1 ? Integer.parseInt(args[1]) : 1 << 20;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+
+        IntervalTable table = IntervalTable.build(tree);
+        System.out.println("ranges: " + table.size() + ", vectorized: "
+            + IntervalTable.isBatchVectorized());
+
+        int[] ips = new int[n];
+        Random rand = new Random(0);
+        for (int i = 0; i < n; i++) {
+            ips[i] = rand.nextInt();
+        }
+        int[] single = new int[n];
+        int[] batch = new int[n];
+
+        for (int round = 0; round < rounds; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < n; i++) {
+                single[i] = table.getId(ips[i]);
+            }
+            long singleNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            table.getAll(ips, batch);
+            long batchNanos = System.nanoTime() - start;
+
+            for (int i = 0; i < n; i++) {
+                if (single[i] != batch[i])
+                    throw new IllegalStateException("mismatch at " + i);
+            }
+            System.out.println(String.format(
+                "round %d: single %.1f Mops/s, batch %.1f Mops/s, x%.2f",
+                round, n * 1e3 / singleNanos, n * 1e3 / batchNanos,
+                (double) singleNanos / batchNanos));
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package org.lic.ip.benchmark;
+
+/**
+ * Log-linear histogram of latencies in nanoseconds: 16 linear sub-buckets per
+ * power of two, so any recorded value is known within 1/16 (6%), in a fixed
+ * array that recording never allocates. Not thread-safe, each thread records
+ * in its own and the histograms are added afterwards.
+ */
+class LatencyHistogram {
+
+    private static final int SUB_BITS = 4;
+
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+    private final long[] counts = new long[(64 - SUB_BITS + 1) * SUB_BUCKETS];
+
+    private long total;
+
+    void record(long nanos) {
+        counts[bucketOf(Math.max(nanos, 0))]++;
+        total++;
+    }
+
+    void add(LatencyHistogram other) {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += other.counts[i];
+        }
+        total += other.total;
+    }
+
+    long count() {
+        return total;
+    }
+
+    /**
+     * @param quantile
+     *            0 to 1, e.g. 0.99 for p99
+     * @return upper bound of the bucket holding the quantile, 0 when empty
+     */
+    long percentile(double quantile) {
+        long rank = (long) Math.ceil(quantile * total);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank && seen > 0)
+                return upperBoundOf(i);
+        }
+        return 0;
+    }
+
+    private static int bucketOf(long v) {
+        if (v < SUB_BUCKETS)
+            return (int) v;
+        // v in [2^e, 2^(e+1)), e >= SUB_BITS
+        int e = 63 - Long.numberOfLeadingZeros(v);
+        int sub = (int) (v >>> (e - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (e - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    private static long upperBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS)
+            return bucket;
+        int e = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        long sub = bucket % SUB_BUCKETS;
+        return ((SUB_BUCKETS + sub + 1) << (e - SUB_BITS)) - 1;
+    }
+}
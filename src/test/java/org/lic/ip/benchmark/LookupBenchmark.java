@@ -0,0 +1,55 @@
+package org.lic.ip.benchmark;
+
+import org.lic.ip.iplocator.IPv4RadixIntTree;
+
+import java.util.Random;
+
+/**
+ * Compares the throughput of single lookups ({@link IPv4RadixIntTree#getId})
+ * with batch lookups ({@link IPv4RadixIntTree#getAll}) over random
+ * addresses, and checks that both give the same ids.
+ *
+ * <pre>
+ * usage: LookupBenchmark [ipdb file] [addresses] [rounds]
+ * </pre>
+ *
+ * Without an ipdb file the shared tree is used.
+ */
+public class LookupBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        IPv4RadixIntTree tree = args.length > 0 ? IPv4RadixIntTree
+            .load(args[0]) : IPv4RadixIntTree.getInstance();
+        int n = args.length > 1 ? Integer.parseInt(args[1]) : 1 << 20;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+
+        int[] ips = new int[n];
+        Random rand = new Random(0);
+        for (int i = 0; i < n; i++) {
+            ips[i] = rand.nextInt();
+        }
+        int[] single = new int[n];
+        int[] batch = new int[n];
+
+        for (int round = 0; round < rounds; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < n; i++) {
+                single[i] = tree.getId(ips[i]);
+            }
+            long singleNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            tree.getAll(ips, batch);
+            long batchNanos = System.nanoTime() - start;
+
+            for (int i = 0; i < n; i++) {
+                if (single[i] != batch[i])
+                    throw new IllegalStateException("mismatch at " + i);
+            }
+            System.out.println(String.format(
+                "round %d: single %.1f Mops/s, batch %.1f Mops/s, x%.2f",
+                round, n * 1e3 / singleNanos, n * 1e3 / batchNanos,
+                (double) singleNanos / batchNanos));
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package org.lic.ip.benchmark;
+
+import org.lic.ip.iplocator.IPLocation;
+import org.lic.ip.iplocator.IPv4Engines;
+import org.lic.ip.iplocator.IPv4RadixIntTree;
+import org.lic.ip.iplocator.IpLocator;
+import org.lic.ip.ipseeker.IPSeeker;
+import org.lic.ip.util.IPUtil;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Runs every lookup engine at 1..N threads sharing one instance, as in
+ * production, and reports for each thread count the throughput, the p50, p99
+ * and p999 latencies of single lookups and the scaling efficiency, that is
+ * throughput(n) / (n * throughput(1)). Efficiency well below 1 while the
+ * machine has idle cores points at contention.
+ *
+ * The addresses follow a Zipf distribution over a fixed population of random
+ * addresses, as real traffic does, so that caches get their realistic share
+ * of hits; each thread replays its own pre-generated stream, in string form
+ * since that is what {@link IpLocator} callers hand over.
+ *
+ * <pre>
+ * usage: ScalabilityBenchmark [ipdb file] [max threads] [seconds per step]
+ *     [zipf exponent]
+ * </pre>
+ *
+ * Without an ipdb file the shared tree is used; the qqwry engine is the
+ * shared {@link IPSeeker}, run when qqwry.dat is on the classpath. Threads
+ * default to twice the number of cores, steps to 2 seconds after 1 second of
+ * warm-up, the exponent to 1.0.
+ * Latencies are measured around each lookup and include the cost of
+ * System.nanoTime(), some 20ns.
+ */
+public class ScalabilityBenchmark {
+
+    private static final int POPULATION = 1 << 16;
+
+    private static final int STREAM_LENGTH = 1 << 18;
+
+    /** Keeps the lookups from being optimized away. */
+    static volatile int sink;
+
+    public static void main(String[] args) throws Exception {
+        IPv4RadixIntTree tree = args.length > 0 ? IPv4RadixIntTree
+            .load(args[0]) : IPv4RadixIntTree.getInstance();
+        int maxThreads = args.length > 1 ? Integer.parseInt(args[1]) : 2
+            * Runtime.getRuntime().availableProcessors();
+        double seconds = args.length > 2 ? Double.parseDouble(args[2]) : 2;
+        double exponent = args.length > 3 ? Double.parseDouble(args[3]) : 1.0;
+
+        Map<String, IpLocator> engines = new LinkedHashMap<String, IpLocator>();
+        for (String name: new String[] { IPv4Engines.RADIX,
+            IPv4Engines.COMPACT, IPv4Engines.MULTIBIT, IPv4Engines.DIR24,
+            IPv4Engines.INTERVAL }) {
+            engines.put(name, IPv4Engines.create(name, tree));
+        }
+        if (IPSeeker.class.getClassLoader().getResource("qqwry.dat") != null)
+            engines.put("qqwry", IPSeeker.SHARED);
+
+        String[][] streams = zipfStreams(maxThreads, exponent, new Random(0));
+        System.out.println(String.format(
+            "%d cores, zipf exponent %.2f over %d addresses, %.1fs per step",
+            Runtime.getRuntime().availableProcessors(), exponent, POPULATION,
+            seconds));
+        for (Map.Entry<String, IpLocator> engine: engines.entrySet()) {
+            System.out.println();
+            System.out.println(engine.getKey());
+            System.out.println("threads\tMops/s\tp50 ns\tp99 ns\tp999 ns\tefficiency");
+            double single = 0;
+            for (int threads: threadCounts(maxThreads)) {
+                Step step = run(engine.getValue(), streams, threads, seconds);
+                if (threads == 1)
+                    single = step.throughput;
+                System.out.println(String.format("%d\t%.2f\t%d\t%d\t%d\t%.2f",
+                    threads, step.throughput / 1e6,
+                    step.latencies.percentile(0.5),
+                    step.latencies.percentile(0.99),
+                    step.latencies.percentile(0.999), step.throughput
+                        / (threads * single)));
+            }
+        }
+    }
+
+    /**
+     * @return 1, 2, 4... up to max, max included
+     */
+    static int[] threadCounts(int max) {
+        List<Integer> counts = new ArrayList<Integer>();
+        for (int n = 1; n < max; n *= 2) {
+            counts.add(n);
+        }
+        counts.add(max);
+        int[] ret = new int[counts.size()];
+        for (int i = 0; i < ret.length; i++) {
+            ret[i] = counts.get(i);
+        }
+        return ret;
+    }
+
+    /**
+     * Draws, for each thread, a stream of addresses whose ranks in a random
+     * population follow a Zipf distribution: rank k comes with probability
+     * proportional to 1 / k^exponent.
+     */
+    static String[][] zipfStreams(int threads, double exponent, Random rand) {
+        String[] population = new String[POPULATION];
+        for (int i = 0; i < POPULATION; i++) {
+            population[i] = IPUtil.ipLong2String(rand.nextInt() & 0xffffffffL);
+        }
+        double[] cdf = new double[POPULATION];
+        double sum = 0;
+        for (int k = 0; k < POPULATION; k++) {
+            sum += 1 / Math.pow(k + 1, exponent);
+            cdf[k] = sum;
+        }
+
+        String[][] streams = new String[threads][STREAM_LENGTH];
+        for (int t = 0; t < threads; t++) {
+            for (int i = 0; i < STREAM_LENGTH; i++) {
+                int k = Arrays.binarySearch(cdf, rand.nextDouble() * sum);
+                streams[t][i] = population[k >= 0 ? k : Math.min(-k - 1,
+                    POPULATION - 1)];
+            }
+        }
+        return streams;
+    }
+
+    private static class Step {
+        double throughput;
+
+        final LatencyHistogram latencies = new LatencyHistogram();
+    }
+
+    private static Step run(final IpLocator locator, String[][] streams,
+        int threads, double seconds) throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        final LatencyHistogram[] histograms = new LatencyHistogram[threads];
+        final long[] ops = new long[threads];
+        final long[] nanos = new long[threads];
+        final long warmupNanos = (long) (seconds * 0.5e9);
+        final long measureNanos = (long) (seconds * 1e9);
+
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int id = t;
+            final String[] stream = streams[t];
+            workers[t] = new Thread("lookup-" + t) {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    int h = 0;
+                    int i = 0;
+                    long now = System.nanoTime();
+                    long end = now + warmupNanos;
+                    while (now < end) {
+                        h += locator.getIPLocation(stream[i]).hashCode();
+                        i = (i + 1) & (STREAM_LENGTH - 1);
+                        now = System.nanoTime();
+                    }
+
+                    LatencyHistogram histogram = new LatencyHistogram();
+                    long begin = now;
+                    end = now + measureNanos;
+                    while (now < end) {
+                        IPLocation loc = locator.getIPLocation(stream[i]);
+                        long after = System.nanoTime();
+                        histogram.record(after - now);
+                        h += loc.hashCode();
+                        i = (i + 1) & (STREAM_LENGTH - 1);
+                        now = after;
+                    }
+                    histograms[id] = histogram;
+                    ops[id] = histogram.count();
+                    nanos[id] = now - begin;
+                    sink += h;
+                }
+            };
+            workers[t].start();
+        }
+        start.countDown();
+        for (Thread worker: workers) {
+            worker.join();
+        }
+
+        Step step = new Step();
+        for (int t = 0; t < threads; t++) {
+            step.latencies.add(histograms[t]);
+            step.throughput += ops[t] * 1e9 / nanos[t];
+        }
+        return step;
+    }
+}
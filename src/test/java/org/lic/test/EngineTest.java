@@ -0,0 +1,283 @@
+package org.lic.test;
+
+import org.junit.Test;
+import org.lic.ip.crawler.IpData;
+import org.lic.ip.iplocator.Dir24Table;
+import org.lic.ip.iplocator.IPDatabaseCompiler;
+import org.lic.ip.iplocator.IPLocation;
+import org.lic.ip.iplocator.IPv4Engine;
+import org.lic.ip.iplocator.IPv4Engines;
+import org.lic.ip.iplocator.IPv4RadixIntTree;
+import org.lic.ip.iplocator.IntervalTable;
+import org.lic.ip.iplocator.IpLocator;
+import org.lic.ip.iplocator.LocationDictionary;
+import org.lic.ip.iplocator.LocationDictionary.Attribute;
+import org.lic.ip.iplocator.TieredIpLocator;
+import org.lic.ip.util.TreeStats;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 各查询引擎与二叉树查询结果一致性测试
+ */
+public class EngineTest {
+
+    private static final String[] LINES = {
+        "0.0.0.0/1;美国;;;;1.1.1.1;2147483648",
+        "1.0.0.0/8;澳大利亚;;;;1.2.3.4;16777216",
+        "1.0.1.0/24;中国;福建省;福州市;电信;1.0.1.208;256",
+        "1.0.1.128/25;中国;福建省;厦门市;联通;1.0.1.130;128",
+        "1.0.1.200/32;中国;福建省;泉州市;移动;1.0.1.200;1",
+        "123.58.0.0/16;中国;浙江省;杭州市;电信;123.58.181.1;65536",
+        "123.58.181.0/24;中国;浙江省;杭州市;网易;123.58.181.1;256",
+        "123.58.181.64/26;中国;浙江省;杭州市;电信;123.58.181.65;64",
+        "255.255.255.255/32;日本;;;;255.255.255.255;1" };
+
+    static File writeDb(String[] lines) throws IOException {
+        File file = File.createTempFile("ipdb_all_", ".txt");
+        file.deleteOnExit();
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file),
+            "UTF-8");
+        for (String line: lines) {
+            writer.write(line + "\n");
+        }
+        writer.close();
+        return file;
+    }
+
+    @Test
+    public void testTree() throws Exception {
+        IPv4RadixIntTree tree = IPv4RadixIntTree.load(writeDb(LINES)
+            .getPath());
+        assertEquals("福建省", tree.get("1.0.1.1").country);
+        assertEquals("联通", tree.get("1.0.1.129").area);
+        assertEquals("移动", tree.get("1.0.1.200").area);
+        assertEquals("网易", tree.get("123.58.181.1").area);
+        assertEquals("澳大利亚", tree.get("1.0.2.1").country);
+        assertEquals("日本", tree.get("255.255.255.255").country);
+        assertSame(IPv4RadixIntTree.NO_VALUE, tree.get("200.0.0.1"));
+        assertSame(IPv4RadixIntTree.NO_VALUE, tree.get("www.163.com"));
+        // 相同地点共享同一个实例
+        assertSame(tree.get("123.58.0.1"), tree.get("123.58.181.64"));
+        assertEquals(LocationDictionary.NO_VALUE_ID, tree.getId(0xc8000001));
+    }
+
+    @Test
+    public void testAttributes() throws Exception {
+        File text = writeDb(LINES);
+        File image = File.createTempFile("ipdb_all_", ".img");
+        image.deleteOnExit();
+        IPDatabaseCompiler.compile(text.getPath(), image.getPath());
+
+        Attribute[] attributes = Attribute.values();
+        String[] out = new String[attributes.length];
+        for (File file: new File[] { text, image }) {
+            IPv4RadixIntTree tree = IPv4RadixIntTree.load(file.getPath());
+            assertEquals("福州市", tree.get("1.0.1.1", Attribute.CITY));
+            assertEquals("厦门市", tree.get("1.0.1.129", Attribute.CITY));
+            assertEquals("", tree.get("1.0.2.1", Attribute.PROVINCE));
+            assertEquals(null, tree.get("200.0.0.1", Attribute.COUNTRY));
+            assertEquals(null, tree.get("1.2.3", Attribute.COUNTRY));
+
+            tree.get(0x01000181, new Attribute[] { Attribute.ISP,
+                Attribute.CITY }, out);
+            assertEquals("联通", out[0]);
+            assertEquals("厦门市", out[1]);
+            tree.get(0x01000101, attributes, out);
+            assertEquals("中国", out[0]);
+            assertEquals("福建省", out[1]);
+            assertEquals("福州市", out[2]);
+            assertEquals("电信", out[3]);
+
+            // 城市不同的地点id不同，但共享同一个IPLocation
+            assertEquals(false, tree.getId(0x01000101) == tree.getId(0x01000181));
+            assertSame(tree.get("1.0.1.1").country, tree.get("1.0.1.200").country);
+        }
+    }
+
+    @Test
+    public void testStats() throws Exception {
+        IPv4RadixIntTree tree = IPv4RadixIntTree.load(writeDb(LINES)
+            .getPath());
+        TreeStats stats = tree.getStats();
+        assertEquals(tree.size(), stats.getNodes());
+        assertEquals(0, stats.getSlackNodes());
+        assertEquals(LINES.length, stats.getPrefixes());
+        assertEquals(1, stats.getNodesAtDepth(0));
+        assertEquals(2, stats.getNodesAtDepth(1));
+        assertEquals(2, stats.getPrefixesAtDepth(24));
+        assertEquals(2, stats.getPrefixesAtDepth(32));
+        assertEquals(TreeStats.arrayBytes(tree.size(), 4), (long) stats
+            .getArrayBytes().get("lefts"));
+        assertEquals(true, stats.getDictionaryBytes() > 0);
+        assertEquals(true, stats.getTotalBytes() > stats.getDictionaryBytes());
+
+        // 爬虫用的树
+        org.lic.ip.crawler.IPv4RadixTree crawlerTree = new org.lic.ip.crawler.IPv4RadixTree();
+        IpData data = new IpData();
+        data.setNetwork("1.0.1.0/24");
+        data.setCountry("中国");
+        crawlerTree.put("1.0.1.0/24", data);
+        crawlerTree.put("1.0.2.0/24", data);
+        stats = crawlerTree.getStats();
+        assertEquals(1024, stats.getAllocatedNodes());
+        assertEquals(crawlerTree.size(), stats.getNodes());
+        assertEquals(2, stats.getPrefixesAtDepth(24));
+        long slackBytes = stats.getSlackBytes();
+        assertEquals(true, slackBytes > 0);
+        crawlerTree.trimToSize();
+        stats = crawlerTree.getStats();
+        assertEquals(0, stats.getSlackNodes());
+        assertEquals(0L, stats.getSlackBytes());
+        assertSame(data, crawlerTree.selectValue("1.0.2.3"));
+    }
+
+    @Test
+    public void testEngines() throws Exception {
+        IPv4RadixIntTree tree = IPv4RadixIntTree.load(writeDb(LINES)
+            .getPath());
+        String[] names = { IPv4Engines.MULTIBIT, IPv4Engines.DIR24,
+            IPv4Engines.INTERVAL, IPv4Engines.COMPACT };
+        for (String name: names) {
+            assertSameLookups(name, tree, IPv4Engines.create(name, tree));
+        }
+    }
+
+    @Test
+    public void testMergeCities() throws Exception {
+        // 只有城市不同的相邻网段，查询结果相同，区间表中合并成一个区间
+        IPv4RadixIntTree tree = IPv4RadixIntTree.load(writeDb(new String[] {
+            "1.0.1.0/25;中国;福建省;福州市;电信;1.0.1.1;128",
+            "1.0.1.128/25;中国;福建省;厦门市;电信;1.0.1.129;128" }).getPath());
+        int fuzhou = tree.getId(0x01000101);
+        int xiamen = tree.getId(0x01000181);
+        assertEquals(false, fuzhou == xiamen);
+        LocationDictionary dictionary = tree.getDictionary();
+        assertSame(dictionary.get(fuzhou), dictionary.get(xiamen));
+        assertEquals(fuzhou, dictionary.locationId(xiamen));
+
+        IntervalTable table = IntervalTable.build(tree);
+        assertEquals(3, table.size());
+        Dir24Table dir24 = Dir24Table.build(tree);
+        for (IPv4Engine engine: new IPv4Engine[] { table, dir24 }) {
+            assertEquals(fuzhou, engine.getId(0x01000181));
+            assertSame(dictionary.get(fuzhou), engine.get(0x01000181));
+            assertSame(IPv4RadixIntTree.NO_VALUE, engine.get(0x01000201));
+        }
+    }
+
+    @Test
+    public void testManyLines() throws Exception {
+        // 行数远超16位，值的上限按不同的地点计算，与行数无关
+        IPv4RadixIntTree tree = IPv4RadixIntTree.load(writeDb(
+            LoaderTest.randomLines(70000, 7)).getPath());
+        Dir24Table dir24 = Dir24Table.build(tree);
+        IntervalTable table = IntervalTable.build(tree);
+        Random rand = new Random(7);
+        for (int i = 0; i < 100000; i++) {
+            int ip = rand.nextInt();
+            assertSame(tree.get(ip), dir24.get(ip));
+            assertSame(tree.get(ip), table.get(ip));
+        }
+    }
+
+    @Test
+    public void testBatch() throws Exception {
+        IPv4RadixIntTree tree = IPv4RadixIntTree.load(writeDb(
+            LoaderTest.randomLines(5000, 5)).getPath());
+        Random rand = new Random(0);
+        // 长度不是BATCH_LANES的整数倍
+        int[] ips = new int[100003];
+        for (int i = 0; i < ips.length; i++) {
+            ips[i] = rand.nextInt();
+        }
+        int[] ids = new int[ips.length];
+        IPLocation[] locations = new IPLocation[ips.length];
+        tree.getAll(ips, ids);
+        tree.getAll(ips, locations);
+        for (int i = 0; i < ips.length; i++) {
+            assertEquals(tree.getId(ips[i]), ids[i]);
+            assertSame(tree.get(ips[i]), locations[i]);
+        }
+
+        IntervalTable table = IntervalTable.build(tree);
+        // java17 profile对打包后的jar加上向量模块再跑一遍，
+        // 指定-Diplocator.expectVectorized=true时必须走向量版本
+        if (Boolean.getBoolean("iplocator.expectVectorized"))
+            assertTrue("vector search not in use", IntervalTable.isBatchVectorized());
+        int[] intervalIds = new int[ips.length];
+        table.getAll(ips, intervalIds);
+        for (int i = 0; i < ips.length; i++) {
+            assertEquals(tree.getDictionary().locationId(ids[i]),
+                intervalIds[i]);
+        }
+    }
+
+    @Test
+    public void testTiered() throws Exception {
+        IPv4RadixIntTree tree = IPv4RadixIntTree.load(writeDb(LINES)
+            .getPath());
+        final IPLocation fallback = new IPLocation("香港", "电讯盈科");
+        IpLocator second = new IpLocator() {
+            @Override
+            public IPLocation getIPLocation(String ip) {
+                return ip.startsWith("200.") ? fallback : IPLocation
+                    .getNullInstance();
+            }
+        };
+        TieredIpLocator locator = new TieredIpLocator.Builder()
+            .add("radix", tree).add("fallback", second).build();
+
+        assertSame(tree.get("1.0.1.1"), locator.getIPLocation("1.0.1.1"));
+        assertSame(fallback, locator.getIPLocation("200.0.0.1"));
+        assertSame(fallback, locator.getIPLocation("200.0.0.2"));
+        IPLocation unknown = locator.getIPLocation("201.0.0.1");
+        assertEquals(true, unknown.isUnknown());
+
+        assertEquals(1L, locator.getHits(0));
+        assertEquals(3L, locator.getMisses(0));
+        assertEquals(2L, locator.getHits(1));
+        assertEquals(1L, locator.getMisses(1));
+        assertEquals(1L, locator.getUnresolved());
+        assertEquals("fallback", locator.getTierName(1));
+
+        locator.resetStats();
+        assertEquals(0L, locator.getMisses(0));
+        assertEquals(0L, locator.getUnresolved());
+    }
+
+    static void assertSameLookups(String name, IPv4RadixIntTree tree,
+        IPv4Engine engine) {
+        String[] ips = { "0.0.0.0", "1.0.0.0", "1.0.1.0", "1.0.1.127",
+            "1.0.1.128", "1.0.1.199", "1.0.1.200", "1.0.1.201",
+            "1.0.1.255", "1.0.2.0", "123.58.181.63", "123.58.181.64",
+            "123.58.181.127", "123.58.181.128", "127.255.255.255",
+            "128.0.0.0", "255.255.255.254", "255.255.255.255", "1.2.3" };
+        for (String ip: ips) {
+            assertSame(name + " " + ip, tree.get(ip), engine.get(ip));
+        }
+
+        Random rand = new Random(0);
+        for (int i = 0; i < 100000; i++) {
+            int ip = rand.nextInt();
+            if ((i & 1) == 0)
+                ip = (ip & 0x0000ffff) | (i % 3 == 0 ? 0x01000000 : 0x7b3a0000);
+            IPLocation expected = tree.get(ip);
+            assertSame(name, expected, engine.get(ip));
+            assertSame(name, expected, engine.get(ip & 0xffffffffL));
+            int id = tree.getId(ip);
+            if (engine instanceof Dir24Table || engine instanceof IntervalTable)
+                id = tree.getDictionary().locationId(id);
+            assertEquals(name, id, engine.getId(ip));
+        }
+    }
+}
@@ -0,0 +1,251 @@
+package org.lic.test;
+
+import org.junit.Test;
+import org.lic.ip.iplocator.IPLocation;
+import org.lic.ip.ipseeker.IPEntry;
+import org.lic.ip.ipseeker.IPSeeker;
+import org.lic.ip.util.IPUtil;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * 纯真库按地点反查ip区间的测试
+ */
+public class IPSeekerTest {
+
+    private static final String[][] RECORDS = {
+        { "1.0.0.0", "1.0.0.255", "澳大利亚", "CZ88.NET" },
+        { "1.0.1.0", "1.0.3.255", "福建省福州市", "电信" },
+        { "1.0.4.0", "1.0.7.255", "澳大利亚", "墨尔本" },
+        { "1.0.8.0", "1.0.15.255", "广东省广州市", "电信" },
+        { "123.58.181.0", "123.58.181.255", "浙江省杭州市", "网易公司" },
+        { "123.58.182.0", "123.58.182.255", "浙江省杭州市", "" },
+        { "255.255.255.0", "255.255.255.255", "纯真网络", "IP数据" } };
+
+    /**
+     * 生成纯真库格式的文件：记录区为结束ip、国家、地区，索引区为起始ip和记录偏移
+     */
+    static File writeQQWry(String[][] records) throws IOException {
+        File file = File.createTempFile("qqwry", ".dat");
+        file.deleteOnExit();
+        FileOutputStream fos = new FileOutputStream(file);
+        fos.write(qqwryBytes(records));
+        fos.close();
+        return file;
+    }
+
+    private static byte[] qqwryBytes(String[][] records) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeInt(out, 0, 4);
+        writeInt(out, 0, 4);
+        int[] offsets = new int[records.length];
+        for (int i = 0; i < records.length; i++) {
+            offsets[i] = out.size();
+            writeInt(out, ip(records[i][1]), 4);
+            writeString(out, records[i][2]);
+            writeString(out, records[i][3]);
+        }
+        int ipBegin = out.size();
+        for (int i = 0; i < records.length; i++) {
+            writeInt(out, ip(records[i][0]), 4);
+            writeInt(out, offsets[i], 3);
+        }
+        byte[] bytes = out.toByteArray();
+        int ipEnd = bytes.length - 7;
+        for (int i = 0; i < 4; i++) {
+            bytes[i] = (byte) (ipBegin >>> (8 * i));
+            bytes[4 + i] = (byte) (ipEnd >>> (8 * i));
+        }
+        return bytes;
+    }
+
+    private static int ip(String s) {
+        String[] octets = s.split("\\.");
+        int ip = 0;
+        for (String octet: octets) {
+            ip = ip << 8 | Integer.parseInt(octet);
+        }
+        return ip;
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int v, int bytes) {
+        for (int i = 0; i < bytes; i++) {
+            out.write(v >>> (8 * i));
+        }
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String s)
+        throws IOException {
+        byte[] b = s.getBytes("GBK");
+        out.write(b, 0, b.length);
+        out.write(0);
+    }
+
+    @Test
+    public void testGetIPEntries() throws Exception {
+        IPSeeker seeker = IPSeeker.load(writeQQWry(RECORDS).getPath());
+        String[] queries = { "澳大利亚", "电信", "杭州", "州", "福建省福州市",
+            "网易公司", "美国", "CZ88", "广东省杭州", "" };
+        for (String q: queries) {
+            assertSameEntries(q, RECORDS, seeker.getIPEntries(q));
+        }
+        List<IPEntry> entries = seeker.getIPEntries("杭州");
+        assertEquals("123.58.181.0", entries.get(0).beginIp);
+        assertEquals("123.58.181.255", entries.get(0).endIp);
+    }
+
+    @Test
+    public void testRebuildOnChange() throws Exception {
+        File file = writeQQWry(RECORDS);
+        IPSeeker seeker = IPSeeker.load(file.getPath());
+        assertEquals(2, seeker.getIPEntries("电信").size());
+
+        // 多一条记录，文件变长；原地改写，不删除也不截短：
+        // Windows下已被映射的文件不能删除或截短
+        String[][] changed = { RECORDS[0], RECORDS[1], RECORDS[2], RECORDS[3],
+            { "2.0.0.0", "2.0.0.255", "江苏省南京市", "电信" }, RECORDS[4],
+            RECORDS[5], RECORDS[6] };
+        byte[] bytes = qqwryBytes(changed);
+        assertEquals(true, bytes.length > file.length());
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.write(bytes);
+        raf.close();
+        assertSameEntries("电信", changed, seeker.getIPEntries("电信"));
+    }
+
+    @Test
+    public void testConcurrentLookups() throws Exception {
+        final IPSeeker seeker = IPSeeker.load(writeQQWry(RECORDS).getPath());
+        final List<String> errors = Collections
+            .synchronizedList(new ArrayList<String>());
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int n = 0; n < 1000; n++) {
+                        for (int r = 0; r < RECORDS.length - 1; r++) {
+                            String[] record = RECORDS[r];
+                            IPLocation expected = new IPLocation(record[2],
+                                record[3]);
+                            for (String ip: new String[] { record[0], record[1] }) {
+                                IPLocation loc = seeker.getIPLocation(ip);
+                                if (!expected.equals(loc))
+                                    errors.add(ip + ": " + loc);
+                            }
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread: threads) {
+            thread.join();
+        }
+        assertEquals(errors.toString(), 0, errors.size());
+        assertEquals(IPLocation.getNullInstance(),
+            seeker.getIPLocation("0.1.2.3"));
+    }
+
+    @Test
+    public void testSplitNetwork() throws Exception {
+        // 一个/24网段分属两条记录，之后是一个空隙
+        String[][] records = { { "1.0.0.0", "1.0.0.127", "福建省福州市", "电信" },
+            { "1.0.0.128", "1.0.0.191", "广东省广州市", "联通" },
+            { "2.0.0.0", "2.255.255.255", "法国", "" },
+            { "255.255.255.0", "255.255.255.255", "纯真网络", "IP数据" } };
+        String path = writeQQWry(records).getPath();
+        for (boolean decoded: new boolean[] { false, true }) {
+            IPSeeker seeker = IPSeeker.load(path, decoded);
+            // 两遍，第二遍走缓存
+            for (int n = 0; n < 2; n++) {
+                assertEquals(new IPLocation("福建省福州市", "电信"),
+                    seeker.getIPLocation("1.0.0.1"));
+                assertEquals(new IPLocation("广东省广州市", "联通"),
+                    seeker.getIPLocation("1.0.0.130"));
+                assertEquals(IPLocation.getNullInstance(),
+                    seeker.getIPLocation("1.0.0.200"));
+                assertEquals(IPLocation.getNullInstance(),
+                    seeker.getIPLocation("1.0.1.0"));
+                assertEquals(new IPLocation("法国", ""),
+                    seeker.getIPLocation("2.1.0.0"));
+                assertEquals(new IPLocation("法国", ""),
+                    seeker.getIPLocation("2.200.3.4"));
+                assertEquals(IPLocation.getNullInstance(),
+                    seeker.getIPLocation("3.0.0.0"));
+                assertEquals(IPLocation.getNullInstance(),
+                    seeker.getIPLocation("0.0.0.1"));
+            }
+        }
+    }
+
+    @Test
+    public void testSharedStrings() throws Exception {
+        IPSeeker seeker = IPSeeker.load(writeQQWry(RECORDS).getPath(), false);
+        // 两条记录各自存了一份"电信"，解码结果按内容共用
+        IPLocation a = seeker.getIPLocation("1.0.1.1");
+        IPLocation b = seeker.getIPLocation("1.0.8.1");
+        assertEquals(new IPLocation("福建省福州市", "电信"), a);
+        assertEquals(new IPLocation("广东省广州市", "电信"), b);
+        assertSame(a.area, b.area);
+    }
+
+    @Test
+    public void testDecoded() throws Exception {
+        String path = writeQQWry(RECORDS).getPath();
+        IPSeeker mapped = IPSeeker.load(path, false);
+        IPSeeker decoded = IPSeeker.load(path, true);
+        List<String> ips = new ArrayList<String>();
+        for (String[] record: RECORDS) {
+            ips.add(record[0]);
+            ips.add(record[1]);
+        }
+        // 记录之间的空隙和第一条记录之前
+        ips.add("0.0.0.1");
+        ips.add("1.0.16.0");
+        ips.add("100.1.2.3");
+        ips.add("200.1.2.3");
+        Random rand = new Random(0);
+        for (int i = 0; i < 1000; i++) {
+            ips.add(IPUtil.ipLong2String(rand.nextInt() & 0xffffffffL));
+        }
+        for (String ip: ips) {
+            assertEquals(ip, mapped.getIPLocation(ip),
+                decoded.getIPLocation(ip));
+        }
+        assertEquals(new IPLocation("浙江省杭州市", "网易公司"),
+            decoded.getIPLocation("123.58.181.1"));
+        assertEquals(IPLocation.getNullInstance(),
+            decoded.getIPLocation("1.0.16.0"));
+    }
+
+    /**
+     * 与逐条indexOf的结果对比，最后一条索引记录不参与查询
+     */
+    private static void assertSameEntries(String q, String[][] records,
+        List<IPEntry> entries) {
+        int i = 0;
+        for (int r = 0; r < records.length - 1; r++) {
+            String[] record = records[r];
+            if (record[2].indexOf(q) == -1 && record[3].indexOf(q) == -1)
+                continue;
+            IPEntry entry = entries.get(i++);
+            assertEquals(q, record[0], entry.beginIp);
+            assertEquals(q, record[1], entry.endIp);
+            assertEquals(q, record[2], entry.country);
+            assertEquals(q, record[3], entry.area);
+        }
+        assertEquals(q, i, entries.size());
+    }
+}
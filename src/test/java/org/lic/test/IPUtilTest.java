@@ -0,0 +1,67 @@
+package org.lic.test;
+
+import org.junit.Test;
+import org.lic.ip.util.IPUtil;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * IPUtil的ip解析测试
+ */
+public class IPUtilTest {
+
+    @Test
+    public void testParseIPv4() {
+        assertEquals(0L, IPUtil.parseIPv4("0.0.0.0"));
+        assertEquals(0x7f000001L, IPUtil.parseIPv4("127.0.0.1"));
+        assertEquals(0xffffffffL, IPUtil.parseIPv4("255.255.255.255"));
+        assertEquals(IPUtil.ipString2Long("123.58.181.1"),
+            IPUtil.parseIPv4("123.58.181.1"));
+    }
+
+    @Test
+    public void testParseIPv4Malformed() {
+        String[] bad = { null, "", "1.2.3", "1.2.3.4.5", "256.1.1.1",
+            "1..2.3", ".1.2.3", "1.2.3.", "1.2.3.4 ", "a.b.c.d",
+            "www.163.com", "1234.1.1.1", "-1.2.3.4" };
+        for (String ip: bad) {
+            assertEquals(ip, -1L, IPUtil.parseIPv4(ip));
+        }
+    }
+
+    @Test
+    public void testParseIPv6() {
+        assertIPv6(0L, 0L, "::");
+        assertIPv6(0L, 1L, "::1");
+        assertIPv6(0x20010db800000000L, 0L, "2001:db8::");
+        assertIPv6(0x20010db885a30000L, 0x00008a2e03707334L,
+            "2001:0db8:85a3:0000:0000:8a2e:0370:7334");
+        assertIPv6(0x20010db885a30000L, 0x00008a2e03707334L,
+            "2001:DB8:85A3::8A2E:370:7334");
+        assertIPv6(0x0001000200030004L, 0x0005000600070008L,
+            "1:2:3:4:5:6:7:8");
+        assertIPv6(0x0001000000000000L, 0x0000000000000008L, "1::8");
+        assertIPv6(0L, 0x0000ffff01020304L, "::ffff:1.2.3.4");
+        assertIPv6(0x0001000200030004L, 0x0005000601020304L,
+            "1:2:3:4:5:6:1.2.3.4");
+    }
+
+    private static void assertIPv6(long hi, long lo, String ip) {
+        long[] out = new long[2];
+        assertEquals(ip, true, IPUtil.parseIPv6(ip, out));
+        assertEquals(ip, hi, out[0]);
+        assertEquals(ip, lo, out[1]);
+    }
+
+    @Test
+    public void testParseIPv6Malformed() {
+        String[] bad = { null, "", ":", ":::", "1:::2", "1::2::3", "12345::",
+            "1:2:3:4:5:6:7", "1:2:3:4:5:6:7:8:9", "1::2:3:4:5:6:7:8", "1:",
+            ":1", "g::", "1.2.3.4", "::1.2.3", "::256.1.1.1",
+            "1:2:3:4:5:6:7:1.2.3.4", "::1 ", "fe80::1%eth0" };
+        long[] out = new long[2];
+        for (String ip: bad) {
+            assertEquals(ip, false, IPUtil.parseIPv6(ip, out));
+        }
+    }
+}
@@ -0,0 +1,433 @@
+package org.lic.test;
+
+import org.junit.Test;
+import org.lic.ip.iplocator.DeltaFile;
+import org.lic.ip.iplocator.IPDatabaseCompiler;
+import org.lic.ip.iplocator.IPv4Engine;
+import org.lic.ip.iplocator.IPv4Engines;
+import org.lic.ip.iplocator.IPv4RadixIntTree;
+import org.lic.ip.iplocator.IPv6RadixTree;
+import org.lic.ip.iplocator.MappedRadixTree;
+import org.lic.ip.iplocator.ParallelTreeLoader;
+import org.lic.ip.iplocator.ReloadableEngine;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+/**
+ * ip库各种加载方式的一致性测试
+ */
+public class LoaderTest {
+
+    static String[] randomLines(int n, long seed) {
+        String[] countries = { "美国", "日本", "澳大利亚" };
+        String[] provinces = { "福建省", "浙江省", "广东省" };
+        String[] isps = { "电信", "联通", "移动", "" };
+        Random rand = new Random(seed);
+        String[] lines = new String[n];
+        for (int i = 0; i < n; i++) {
+            int prefixlen = 8 + rand.nextInt(25);
+            int ip = rand.nextInt() & (int) (0xffffffffL << (32 - prefixlen));
+            String net = ((ip >>> 24) & 0xff) + "." + ((ip >>> 16) & 0xff)
+                + "." + ((ip >>> 8) & 0xff) + "." + (ip & 0xff);
+            String country = rand.nextBoolean() ? "中国"
+                : countries[rand.nextInt(countries.length)];
+            String province = country.equals("中国") ? provinces[rand
+                .nextInt(provinces.length)] : "";
+            lines[i] = net + "/" + prefixlen + ";" + country + ";" + province
+                + ";;" + isps[rand.nextInt(isps.length)] + ";" + net + ";"
+                + (1L << (32 - prefixlen));
+        }
+        return lines;
+    }
+
+    static void assertSameTree(IPv4RadixIntTree expected, IPv4Engine actual) {
+        Random rand = new Random(1);
+        for (int i = 0; i < 200000; i++) {
+            int ip = rand.nextInt();
+            assertEquals(expected.get(ip), actual.get(ip));
+        }
+    }
+
+    static void assertSameIds(IPv4RadixIntTree expected, IPv4Engine actual) {
+        Random rand = new Random(2);
+        for (int i = 0; i < 200000; i++) {
+            int ip = rand.nextInt();
+            assertEquals(expected.getId(ip), actual.getId(ip));
+        }
+    }
+
+    static void assertSameIPv6(IPv6RadixTree expected, IPv6RadixTree actual) {
+        String[] ips = { "2001:db8::1", "2001:db8:2::1", "2001:db8:1::5",
+            "2001:db8:1:2:ffff::1", "2400:da00::2", "2400:da00::1",
+            "2001:db9::1", "::1", "::ffff:1.0.1.200", "::ffff:1.0.1.5" };
+        for (String ip: ips) {
+            assertEquals(ip, expected.get(ip), actual.get(ip));
+        }
+    }
+
+    @Test
+    public void testImage() throws Exception {
+        File text = EngineTest.writeDb(randomLines(5000, 0));
+        File image = File.createTempFile("ipdb_all_", ".img");
+        image.deleteOnExit();
+
+        IPDatabaseCompiler.compile(text.getPath(), image.getPath());
+        IPv4RadixIntTree expected = IPv4RadixIntTree.load(text.getPath());
+        IPv4RadixIntTree actual = IPv4RadixIntTree.load(image.getPath());
+        assertEquals(expected.size(), actual.size());
+        assertEquals(expected.getDictionary().size(), actual.getDictionary()
+            .size());
+        assertSameTree(expected, actual);
+        assertSameIds(expected, actual);
+        MappedRadixTree mapped = MappedRadixTree.open(image.getPath());
+        assertSameTree(expected, mapped);
+        assertSameIds(expected, mapped);
+    }
+
+    @Test
+    public void testTextFormat() throws Exception {
+        String[] lines = randomLines(2000, 4);
+        IPv4RadixIntTree expected = IPv4RadixIntTree.load(EngineTest.writeDb(
+            lines).getPath());
+
+        // windows换行、空行、末行无换行
+        StringBuilder sb = new StringBuilder("\n");
+        for (String line: lines) {
+            sb.append(line).append("\r\n\r\n");
+        }
+        sb.setLength(sb.length() - 4);
+        File crlf = EngineTest.writeDb(new String[] { sb.toString() });
+        IPv4RadixIntTree actual = IPv4RadixIntTree.load(crlf.getPath());
+        assertEquals(expected.size(), actual.size());
+        assertSameTree(expected, actual);
+        assertSameIds(expected, actual);
+
+        String[] malformed = { "1.0.1.0/24;中国;福建省;福州市;电信;1.0.1.208;256",
+            "1.0.256.0/24;中国;福建省;福州市;电信;1.0.1.208;256" };
+        try {
+            IPv4RadixIntTree.load(EngineTest.writeDb(malformed).getPath());
+            fail("malformed network accepted");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testParallel() throws Exception {
+        String[] lines = randomLines(20000, 3);
+        // 短于/8的前缀
+        lines[100] = "64.0.0.0/2;美国;;;;64.0.0.1;1073741824";
+        lines[5000] = "16.0.0.0/4;日本;;;电信;16.0.0.1;268435456";
+        File text = EngineTest.writeDb(lines);
+
+        IPv4RadixIntTree expected = IPv4RadixIntTree.load(text.getPath());
+        for (int threads = 1; threads <= 8; threads *= 2) {
+            IPv4RadixIntTree actual = ParallelTreeLoader.load(text.getPath(),
+                threads);
+            assertEquals(expected.getDictionary().size(), actual
+                .getDictionary().size());
+            assertSameTree(expected, actual);
+            assertSameIds(expected, actual);
+        }
+    }
+
+    @Test
+    public void testDelta() throws Exception {
+        String[] oldLines = randomLines(5000, 0);
+        String[] newLines = new String[oldLines.length];
+        String[] added = randomLines(300, 1);
+        for (int i = 0; i < oldLines.length; i++) {
+            if (i % 50 == 0) // 删除
+                newLines[i] = added[i / 50];
+            else if (i % 50 == 1) // 修改
+                newLines[i] = oldLines[i].replaceFirst(";[^;]*;[^;]*$",
+                    ";新运营商;1.1.1.1;1");
+            else
+                newLines[i] = oldLines[i];
+        }
+        File oldText = EngineTest.writeDb(oldLines);
+        File newText = EngineTest.writeDb(newLines);
+        File delta = File.createTempFile("ipdb_delta_", ".txt");
+        delta.deleteOnExit();
+
+        int changes = DeltaFile.diff(oldText.getPath(), newText.getPath(),
+            delta.getPath());
+        assertEquals(true, changes > 200 && changes < 400);
+
+        IPv4RadixIntTree oldTree = IPv4RadixIntTree.load(oldText.getPath());
+        IPv4RadixIntTree patched = oldTree.applyDelta(delta.getPath());
+        assertSameTree(IPv4RadixIntTree.load(newText.getPath()), patched);
+        // 原树不受影响
+        assertSameTree(IPv4RadixIntTree.load(oldText.getPath()), oldTree);
+    }
+
+    @Test
+    public void testIPv6() throws Exception {
+        String[] lines = {
+            "1.0.1.0/24;中国;福建省;福州市;电信;1.0.1.208;256",
+            "2001:db8::/32;美国;;;;2001:db8::1;0",
+            "2001:db8:1::/48;中国;福建省;福州市;电信;2001:db8:1::1;0",
+            "2001:db8:1:2::/64;日本;;;联通;2001:db8:1:2::1;0",
+            "2400:da00::/32;中国;浙江省;杭州市;网易;2400:da00::1;0",
+            "2400:da00::1/128;中国;浙江省;杭州市;电信;2400:da00::1;1",
+            "::ffff:1.0.1.128/121;中国;浙江省;杭州市;移动;1.0.1.129;128" };
+        File text = EngineTest.writeDb(lines);
+        IPv4RadixIntTree tree = IPv4RadixIntTree.load(text.getPath());
+        IPv6RadixTree v6 = tree.getIPv6();
+        assertEquals("美国", v6.get("2001:db8::1").country);
+        assertEquals("美国", v6.get("2001:db8:2::1").country);
+        assertEquals("福建省", v6.get("2001:db8:1::5").country);
+        assertEquals("日本", v6.get("2001:db8:1:2:ffff::1").country);
+        assertEquals("网易", v6.get("2400:da00::2").area);
+        assertEquals("电信", v6.get("2400:da00::1").area);
+        assertSame(IPv4RadixIntTree.NO_VALUE, v6.get("2001:db9::1"));
+        assertSame(IPv4RadixIntTree.NO_VALUE, v6.get("::1"));
+        assertSame(IPv4RadixIntTree.NO_VALUE, v6.get("2001:db8::x"));
+        // IPv4-mapped地址走IPv4树
+        assertEquals("移动", tree.get("1.0.1.200").area);
+        assertSame(tree.get("1.0.1.200"), v6.get("::ffff:1.0.1.200"));
+        assertSame(tree.get("1.0.1.5"), v6.get("::ffff:1.0.1.5"));
+        assertSame(tree.get("1.0.1.5"), v6.get("1.0.1.5"));
+        // IPv4树中没有的IPv4-mapped地址落到覆盖它的更短的IPv6前缀
+        IPv4RadixIntTree covered = IPv4RadixIntTree.load(EngineTest.writeDb(
+            new String[] { lines[0], "::/64;澳大利亚;;;;::1;0" }).getPath());
+        assertEquals("澳大利亚", covered.getIPv6().get("::ffff:2.2.2.2").country);
+        assertEquals("澳大利亚", covered.getIPv6().get("2.2.2.2").country);
+        assertEquals("福建省", covered.getIPv6().get("::ffff:1.0.1.1").country);
+        assertSame(IPv4RadixIntTree.NO_VALUE, covered.get("2.2.2.2"));
+
+        File image = File.createTempFile("ipdb_all_", ".img");
+        image.deleteOnExit();
+        tree.writeImage(image.getPath());
+        assertSameIPv6(v6, IPv4RadixIntTree.load(image.getPath()).getIPv6());
+        assertSameIPv6(v6, ParallelTreeLoader.load(text.getPath(), 3)
+            .getIPv6());
+
+        File delta = File.createTempFile("ipdb_delta_", ".txt");
+        delta.deleteOnExit();
+        Writer writer = new OutputStreamWriter(new FileOutputStream(delta),
+            "UTF-8");
+        writer.write("- 2001:db8:1::/48\n= 2400:da00::/32;日本;;;;2400:da00::1;0\n");
+        writer.close();
+        IPv6RadixTree patched = tree.applyDelta(delta.getPath()).getIPv6();
+        assertEquals("美国", patched.get("2001:db8:1::5").country);
+        assertEquals("日本", patched.get("2400:da00::2").country);
+        assertEquals("福建省", v6.get("2001:db8:1::5").country);
+
+        // IPv4-mapped前缀的增删都落在IPv4树上
+        writer = new OutputStreamWriter(new FileOutputStream(delta), "UTF-8");
+        writer.write("+ ::ffff:2.2.2.0/120;韩国;;;;2.2.2.1;0\n");
+        writer.close();
+        IPv4RadixIntTree added = tree.applyDelta(delta.getPath());
+        assertEquals("韩国", added.get("2.2.2.2").country);
+        assertEquals("韩国", added.getIPv6().get("::ffff:2.2.2.2").country);
+        writer = new OutputStreamWriter(new FileOutputStream(delta), "UTF-8");
+        writer.write("- ::ffff:2.2.2.0/120\n");
+        writer.close();
+        IPv4RadixIntTree removed = added.applyDelta(delta.getPath());
+        assertSame(IPv4RadixIntTree.NO_VALUE, removed.get("2.2.2.2"));
+        assertSame(IPv4RadixIntTree.NO_VALUE,
+            removed.getIPv6().get("::ffff:2.2.2.2"));
+    }
+
+    @Test
+    public void testIPv6Random() throws Exception {
+        // 稀疏的随机前缀，与逐条比较最长前缀的结果对比
+        Random rand = new Random(6);
+        int n = 3000;
+        long[][] prefixes = new long[n][];
+        String[] lines = new String[n];
+        for (int i = 0; i < n; i++) {
+            long hi = 0x2400000000000000L | (long) rand.nextInt(4) << 40
+                | rand.nextLong() & 0xffffffffffL;
+            long lo = rand.nextLong();
+            int len = 24 + rand.nextInt(105);
+            hi &= len >= 64 ? -1L : -1L << (64 - len);
+            lo &= len <= 64 ? 0L : len == 128 ? -1L : -1L << (128 - len);
+            prefixes[i] = new long[] { hi, lo, len };
+            lines[i] = ipv6String(hi, lo) + "/" + len + ";美国;;;isp" + i
+                + ";::;0";
+        }
+        IPv4RadixIntTree tree = IPv4RadixIntTree.load(EngineTest.writeDb(
+            lines).getPath());
+        IPv6RadixTree v6 = tree.getIPv6();
+
+        for (int k = 0; k < 20000; k++) {
+            long[] p = prefixes[rand.nextInt(n)];
+            long hi = p[0];
+            long lo = p[1];
+            int bits = rand.nextInt(129);
+            if (bits < 64)
+                hi ^= rand.nextLong() & (-1L >>> bits);
+            if (bits < 128)
+                lo ^= rand.nextLong() & (bits <= 64 ? -1L : -1L >>> (bits - 64));
+
+            String expected = IPv4RadixIntTree.NO_VALUE.area;
+            int best = -1;
+            for (int i = 0; i < n; i++) {
+                int len = (int) prefixes[i][2];
+                long mhi = len >= 64 ? -1L : -1L << (64 - len);
+                long mlo = len <= 64 ? 0L : len == 128 ? -1L
+                    : -1L << (128 - len);
+                // 相同前缀以后出现的为准
+                if (len >= best && (hi & mhi) == prefixes[i][0]
+                    && (lo & mlo) == prefixes[i][1]) {
+                    best = len;
+                    expected = lines[i].split(";")[4];
+                }
+            }
+            assertEquals(expected, v6.get(hi, lo).area);
+            assertEquals(v6.get(hi, lo), v6.get(ipv6String(hi, lo)));
+        }
+    }
+
+    private static String ipv6String(long hi, long lo) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 8; i++) {
+            long w = i < 4 ? hi : lo;
+            if (i > 0)
+                sb.append(':');
+            sb.append(Long.toHexString(w >>> (48 - 16 * (i & 3)) & 0xffff));
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void testCorruptedImage() throws Exception {
+        File text = EngineTest.writeDb(randomLines(100, 0));
+        File image = File.createTempFile("ipdb_all_", ".img");
+        image.deleteOnExit();
+        IPDatabaseCompiler.compile(text.getPath(), image.getPath());
+
+        RandomAccessFile file = new RandomAccessFile(image, "rw");
+        file.seek(file.length() - 1);
+        int last = file.read();
+        file.seek(file.length() - 1);
+        file.write(~last);
+        file.close();
+        try {
+            IPv4RadixIntTree.load(image.getPath());
+            fail("checksum not verified");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testReload() throws Exception {
+        File dir = File.createTempFile("ipdb", "");
+        if (!dir.delete() || !dir.mkdir())
+            throw new IOException("can not create " + dir);
+        File first = new File(dir, "ipdb_all_2015-01-01");
+        moveTo(EngineTest.writeDb(randomLines(1000, 0)), first);
+        ReloadableEngine engine = new ReloadableEngine(IPv4Engines.RADIX,
+            first.getPath());
+        try {
+            engine.watch(dir.getPath(), 20);
+
+            // 较新的文件被换上
+            File second = new File(dir, "ipdb_all_2015-01-02");
+            File text = EngineTest.writeDb(randomLines(1000, 1));
+            IPv4RadixIntTree expected = IPv4RadixIntTree.load(text.getPath());
+            moveTo(text, second);
+            waitFor(engine, second.getPath(), 0);
+            assertSameTree(expected, engine.getEngine());
+
+            // 写了一半的文件不换上，文件变化后才重试
+            IPv4Engine before = engine.getEngine();
+            File third = new File(dir, "ipdb_all_2015-01-03");
+            File text3 = EngineTest.writeDb(randomLines(1000, 2));
+            byte[] full = readBytes(text3);
+            // 截断在行中间
+            moveTo(writeBytes(Arrays.copyOf(full, full.length / 3),
+                1420214400000L), third);
+            waitFor(engine, second.getPath(), 1);
+            assertSame(before, engine.getEngine());
+            Thread.sleep(100);
+            assertEquals(1, engine.getFailureCount());
+            assertSame(before, engine.getEngine());
+            moveTo(writeBytes(full, 1420214401000L), third);
+            waitFor(engine, third.getPath(), 1);
+            assertSameTree(IPv4RadixIntTree.load(text3.getPath()),
+                engine.getEngine());
+
+            // 损坏的镜像不换上，修改时间和长度不变时不重试
+            File image = File.createTempFile("ipdb_all_", ".img");
+            image.deleteOnExit();
+            IPDatabaseCompiler.compile(EngineTest.writeDb(
+                randomLines(1000, 3)).getPath(), image.getPath());
+            byte[] bytes = readBytes(image);
+            byte[] corrupted = bytes.clone();
+            corrupted[corrupted.length - 1] ^= 0xff;
+            File fourth = new File(dir, "ipdb_all_2015-01-04");
+            before = engine.getEngine();
+            moveTo(writeBytes(corrupted, 1420300800000L), fourth);
+            waitFor(engine, third.getPath(), 2);
+            Thread.sleep(100);
+            assertEquals(2, engine.getFailureCount());
+            assertSame(before, engine.getEngine());
+
+            moveTo(writeBytes(bytes, 1420300801000L), fourth);
+            waitFor(engine, fourth.getPath(), 2);
+            assertSameTree(IPv4RadixIntTree.load(image.getPath()),
+                engine.getEngine());
+        } finally {
+            engine.close();
+        }
+    }
+
+    /**
+     * 等到加载了path且失败了至少failures次
+     */
+    private static void waitFor(ReloadableEngine engine, String path,
+        long failures) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!path.equals(engine.getLoadedPath())
+            || engine.getFailureCount() < failures) {
+            if (System.currentTimeMillis() > deadline)
+                fail("loaded " + engine.getLoadedPath() + ", failures "
+                    + engine.getFailureCount() + ", expected " + path
+                    + ", failures " + failures);
+            Thread.sleep(10);
+        }
+    }
+
+    private static void moveTo(File file, File target) throws IOException {
+        target.deleteOnExit();
+        if (!file.renameTo(target))
+            throw new IOException("can not move " + file + " to " + target);
+    }
+
+    private static byte[] readBytes(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        byte[] bytes = new byte[(int) in.length()];
+        in.readFully(bytes);
+        in.close();
+        return bytes;
+    }
+
+    /**
+     * 先写到临时文件，再整个移到监视的目录中，以免读到写了一半的文件
+     */
+    private static File writeBytes(byte[] bytes, long modified)
+        throws IOException {
+        File file = File.createTempFile("ipdb", ".tmp");
+        file.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(bytes);
+        out.close();
+        file.setLastModified(modified);
+        return file;
+    }
+}